@@ -0,0 +1,281 @@
+package org.lqzs.sorene;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import androidx.annotation.Nullable;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.lqzs.sorene.io.Storage;
+
+import static org.lqzs.sorene.Sorene.LOG_TAG;
+
+/**
+ * A document tree of the Storage Access Framework. Directories are listed with one query each,
+ * and files that the provider backs with a regular file are opened through their descriptor.
+ */
+public class DocumentStorage implements Storage {
+	private static final String[] PROJECTION = {
+			Document.COLUMN_DOCUMENT_ID,
+			Document.COLUMN_DISPLAY_NAME,
+			Document.COLUMN_MIME_TYPE,
+			Document.COLUMN_SIZE,
+			Document.COLUMN_LAST_MODIFIED,
+	};
+	private final ContentResolver resolver;
+	private final Uri treeUri;
+	private final DocumentNode root;
+
+	/**
+	 * @param treeUri the root document of a tree the user picked
+	 */
+	public DocumentStorage(ContentResolver resolver, Uri treeUri) {
+		this.resolver = resolver;
+		this.treeUri = treeUri;
+		this.root = new DocumentNode(treeUri);
+	}
+
+	private static class DocumentNode implements Node {
+		final Uri uri;
+
+		DocumentNode(Uri uri) {
+			this.uri = uri;
+		}
+
+		@Override
+		public String toString() {
+			return uri.toString();
+		}
+	}
+
+	private static Uri uriOf(Node node) {
+		return ((DocumentNode) node).uri;
+	}
+
+	@Override
+	public Node getRoot() {
+		return root;
+	}
+
+	@Override
+	public List<Child> list(Node directory) {
+		final List<Child> result = new ArrayList<>();
+		final String documentId = DocumentsContract.getDocumentId(uriOf(directory));
+		final Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+		try (Cursor c = resolver.query(children, PROJECTION, null, null, null)) {
+			if (c == null) {
+				return result;
+			}
+			while (c.moveToNext()) {
+				final String name = c.getString(1);
+				if (name == null) {
+					continue;
+				}
+				result.add(new Child(name,
+						new DocumentNode(DocumentsContract.buildDocumentUriUsingTree(treeUri, c.getString(0))),
+						Document.MIME_TYPE_DIR.equals(c.getString(2)),
+						c.isNull(3) ? 0 : c.getLong(3), c.isNull(4) ? 0 : c.getLong(4)));
+			}
+		} catch (RuntimeException e) {
+			Log.e(LOG_TAG, "DocumentStorage: can't list " + documentId, e);
+		}
+		return result;
+	}
+
+	@Override
+	public long lengthOf(Node file) {
+		try (Cursor c = resolver.query(uriOf(file), new String[]{Document.COLUMN_SIZE}, null, null, null)) {
+			if (c == null || !c.moveToFirst()) {
+				return -1;
+			}
+			return c.isNull(0) ? 0 : c.getLong(0);
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public InputStream openInputStream(Node file) throws IOException {
+		final InputStream in = resolver.openInputStream(uriOf(file));
+		if (in == null) {
+			throw new IOException("can't open input stream of " + file);
+		}
+		return in;
+	}
+
+	/**
+	 * @return a channel on the descriptor of {@code file}, or null if the provider only hands
+	 * out pipes or sockets
+	 */
+	@Nullable
+	@Override
+	@SuppressWarnings("resource")
+	public FileChannel openChannel(Node file) {
+		final ParcelFileDescriptor descriptor;
+		try {
+			descriptor = resolver.openFileDescriptor(uriOf(file), "r");
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+		if (descriptor == null) {
+			return null;
+		}
+		try {
+			if (OsConstants.S_ISREG(Os.fstat(descriptor.getFileDescriptor()).st_mode)) {
+				// closing the channel closes the stream and with it the descriptor
+				return new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+			}
+		} catch (ErrnoException e) {
+			Log.w(LOG_TAG, "fstat failed for " + file, e);
+		}
+		try {
+			descriptor.close();
+		} catch (IOException ignored) {
+		}
+		return null;
+	}
+
+	@Nullable
+	@Override
+	public Node createDirectory(Node parent, String name) {
+		return create(parent, name, Document.MIME_TYPE_DIR);
+	}
+
+	@Nullable
+	@Override
+	public Node createFile(Node parent, String name) {
+		return create(parent, name, mimeOf(name));
+	}
+
+	private static String mimeOf(String name) {
+		String mime = null;
+		int dot = name.lastIndexOf(".");
+		if (dot != -1) {
+			mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot));
+		}
+		if (mime == null || "null".equals(mime)) {
+			mime = "application/*";
+		}
+		return mime;
+	}
+
+	@Nullable
+	private Node create(Node parent, String name, String mime) {
+		try {
+			final Uri uri = DocumentsContract.createDocument(resolver, uriOf(parent), mime, name);
+			if (uri != null) {
+				return new DocumentNode(uri);
+			}
+		} catch (FileNotFoundException | RuntimeException e) {
+			Log.e(LOG_TAG, "DocumentStorage: can't create " + name, e);
+		}
+		return null;
+	}
+
+	@Override
+	public boolean delete(Node node) {
+		try {
+			return DocumentsContract.deleteDocument(resolver, uriOf(node));
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Nullable
+	@Override
+	public Node rename(Node node, String name) {
+		try {
+			final Uri uri = DocumentsContract.renameDocument(resolver, uriOf(node), name);
+			return uri != null ? new DocumentNode(uri) : null;
+		} catch (FileNotFoundException | RuntimeException e) {
+			Log.e(LOG_TAG, "DocumentStorage: can't rename " + node, e);
+			return null;
+		}
+	}
+
+	@Override
+	public OutputStream openOutputStream(Node file, long offset) throws IOException {
+		if (offset == 0) {
+			final OutputStream out = resolver.openOutputStream(uriOf(file));
+			if (out == null) {
+				throw new IOException("can't open output stream of " + file);
+			}
+			return out;
+		}
+		final ParcelFileDescriptor fd = resolver.openFileDescriptor(uriOf(file), "rw");
+		if (fd == null) {
+			throw new IOException("can't open " + file);
+		}
+		final FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+		try {
+			out.getChannel().truncate(offset);
+			out.getChannel().position(offset);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		return out;
+	}
+
+	@Nullable
+	@Override
+	public FileChannel openChannel(Node file, long offset, long length) throws IOException {
+		final ParcelFileDescriptor fd = resolver.openFileDescriptor(uriOf(file), "rw");
+		if (fd == null) {
+			return null;
+		}
+		final FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+		try {
+			if (!OsConstants.S_ISREG(Os.fstat(fd.getFileDescriptor()).st_mode)) {
+				out.close();
+				return null;
+			}
+			final FileChannel channel = out.getChannel();
+			channel.truncate(offset);
+			channel.position(offset);
+			if (length > offset) {
+				try {
+					Os.posix_fallocate(fd.getFileDescriptor(), offset, length - offset);
+				} catch (ErrnoException e) {
+					// vfat, sdcardfs and FUSE may not support it, the file just isn't reserved
+					Log.d(LOG_TAG, "openChannel: no preallocation, " + e.getMessage());
+				}
+			}
+			return channel;
+		} catch (ErrnoException e) {
+			out.close();
+			throw new IOException("can't stat " + file, e);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	@Nullable
+	@Override
+	public String getMimeType(String name) {
+		final int dot = name.lastIndexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+		return MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+}
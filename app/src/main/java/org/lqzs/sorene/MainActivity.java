@@ -8,6 +8,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
@@ -19,9 +20,14 @@ import androidx.core.content.ContextCompat;
 import com.google.zxing.integration.android.IntentIntegrator;
 import com.google.zxing.integration.android.IntentResult;
 
+import org.lqzs.sorene.security.CipherSuite;
+
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class MainActivity extends Activity {
@@ -141,6 +147,25 @@ public class MainActivity extends Activity {
 		return bestIp;
 	}
 
+	/**
+	 * Publishes a fresh key pair of the receiver together with its address and cipher suites.
+	 */
+	private String getQrPayload(String ipAddress) {
+		final List<CipherSuite> suites = new ArrayList<>();
+		for (CipherSuite suite : CipherSuite.values()) {
+			if (suite.isEncrypting() && suite.isSupported()) {
+				suites.add(suite);
+			}
+		}
+		byte[] publicKey = null;
+		try {
+			publicKey = ((Sorene) getApplicationContext()).publishKey().getPublicKey();
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(LOG_TAG, "Failed to publish a key", e);
+		}
+		return new QrPayload(ipAddress, Sorene.TCP_PORT, publicKey, QrPayload.suiteBits(suites)).encode();
+	}
+
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent result) {
 		// Check for QR code scan result
@@ -154,11 +179,17 @@ public class MainActivity extends Activity {
 					getResources().getString(R.string.qr_code_scan_result, qrContent), 
 					Toast.LENGTH_LONG).show();
 					
-				if (qrContent != null && qrContent.matches("^\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}$")) {
+				final QrPayload payload = qrContent != null ? QrPayload.parse(qrContent, Sorene.TCP_PORT) : null;
+				if (payload != null) {
 					if (uri != null && selectedFiles != null) {
 						Intent intent = new Intent(this, SendService.class);
 						intent.setData(uri);
-						intent.putExtra("host", qrContent);
+						intent.putExtra("host", payload.host);
+						intent.putExtra("port", payload.port);
+						if (payload.publicKey != null) {
+							intent.putExtra("key", payload.publicKey);
+							intent.putExtra("suites", payload.suites);
+						}
 						intent.putExtra("files", selectedFiles);
 						startForegroundServiceCompat(intent);
 					}
@@ -197,6 +228,7 @@ public class MainActivity extends Activity {
 				if (ipAddress != null) {
 					Intent qrIntent = new Intent(this, QrCodeActivity.class);
 					qrIntent.putExtra(QrCodeActivity.EXTRA_IP_ADDRESS, ipAddress);
+					qrIntent.putExtra(QrCodeActivity.EXTRA_PAYLOAD, getQrPayload(ipAddress));
 					startActivity(qrIntent);
 				} else {
 					Toast.makeText(this, "Could not determine IP address", Toast.LENGTH_SHORT).show();
@@ -14,6 +14,7 @@ import com.journeyapps.barcodescanner.BarcodeEncoder;
 
 public class QrCodeActivity extends Activity {
     public static final String EXTRA_IP_ADDRESS = "ip_address";
+    public static final String EXTRA_PAYLOAD = "payload";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -31,9 +32,14 @@ public class QrCodeActivity extends Activity {
 
         ipAddressTextView.setText(ipAddress);
 
+        String payload = getIntent().getStringExtra(EXTRA_PAYLOAD);
+        if (payload == null) {
+            payload = ipAddress;
+        }
+
         try {
             MultiFormatWriter writer = new MultiFormatWriter();
-            BitMatrix bitMatrix = writer.encode(ipAddress, BarcodeFormat.QR_CODE, 512, 512);
+            BitMatrix bitMatrix = writer.encode(payload, BarcodeFormat.QR_CODE, 512, 512);
             BarcodeEncoder barcodeEncoder = new BarcodeEncoder();
             Bitmap bitmap = barcodeEncoder.createBitmap(bitMatrix);
             qrCodeImageView.setImageBitmap(bitmap);
@@ -0,0 +1,95 @@
+package org.lqzs.sorene;
+
+import android.net.Uri;
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+
+import org.lqzs.sorene.security.CipherSuite;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What the receiver's QR code tells the sender: where to connect, the public key of the
+ * receiver and the cipher suites it supports, as {@code sorene://host:port?k=key&c=suites}.
+ * <p>
+ * With the key the sender derives the session key before it connects and sends the manifest
+ * in its first flight. Since the key came from the screen, it is also authenticated. Codes of
+ * older versions hold just the IPv4 address.
+ */
+class QrPayload {
+	final static String Scheme = "sorene";
+	final String host;
+	final int port;
+	@Nullable
+	final byte[] publicKey;
+	/**
+	 * One bit per {@link CipherSuite#id}.
+	 */
+	final int suites;
+
+	QrPayload(String host, int port, @Nullable byte[] publicKey, int suites) {
+		this.host = host;
+		this.port = port;
+		this.publicKey = publicKey;
+		this.suites = suites;
+	}
+
+	String encode() {
+		final Uri.Builder builder = new Uri.Builder().scheme(Scheme).encodedAuthority(host + ":" + port);
+		if (publicKey != null) {
+			builder.appendQueryParameter("k", Base64.encodeToString(publicKey,
+					Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE));
+			builder.appendQueryParameter("c", Integer.toHexString(suites));
+		}
+		return builder.build().toString();
+	}
+
+	/**
+	 * @return null if {@code content} is neither a payload nor an IPv4 address
+	 */
+	@Nullable
+	static QrPayload parse(String content, int defaultPort) {
+		if (content.matches("^\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}$")) {
+			return new QrPayload(content, defaultPort, null, 0);
+		}
+		try {
+			final Uri uri = Uri.parse(content);
+			if (!Scheme.equals(uri.getScheme()) || uri.getHost() == null) {
+				return null;
+			}
+			final int port = uri.getPort() > 0 ? uri.getPort() : defaultPort;
+			final String key = uri.getQueryParameter("k");
+			final String suites = uri.getQueryParameter("c");
+			if (key == null || suites == null) {
+				return new QrPayload(uri.getHost(), port, null, 0);
+			}
+			return new QrPayload(uri.getHost(), port, Base64.decode(key, Base64.URL_SAFE),
+					Integer.parseInt(suites, 16));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	static int suiteBits(Iterable<CipherSuite> suites) {
+		int bits = 0;
+		for (CipherSuite suite : suites) {
+			bits |= 1 << suite.id;
+		}
+		return bits;
+	}
+
+	/**
+	 * The suites in {@code bits}, all at the same rate so that the sender's own rates decide.
+	 */
+	static Map<CipherSuite, Long> suiteRates(int bits) {
+		final Map<CipherSuite, Long> rates = new EnumMap<>(CipherSuite.class);
+		for (CipherSuite suite : CipherSuite.values()) {
+			if ((bits & (1 << suite.id)) != 0) {
+				rates.put(suite, Long.MAX_VALUE);
+			}
+		}
+		return rates;
+	}
+}
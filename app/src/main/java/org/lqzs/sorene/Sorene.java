@@ -5,19 +5,58 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.res.Resources;
 import android.os.Build;
+import android.util.Log;
 
+import androidx.annotation.Nullable;
+
+import org.lqzs.sorene.security.KeyExchange;
+import org.lqzs.sorene.session.Transfer;
+
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
+import java.util.Locale;
 
 public class Sorene extends Application {
 	public final static String LOG_TAG = "Sorene";
 	public final static String CHANNEL_TRANSFER_STATE = "transfer_state";
 	public final static String CHANNEL_TRANSFER_RESULT = "transfer_result";
-	public final static int TCP_PORT = 14645;
-	public final static int IPTOS_THROUGHPUT = 0x08;
+	public final static int TCP_PORT = Transfer.DefaultPort;
 	private final static DecimalFormat prettyFormat = new DecimalFormat("#.##");
 	public MainActivity mainActivity = null;
 	public ReceiveService receiveService = null;
 	public SendService sendService = null;
+	private KeyExchange publishedKey = null;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		// the transfer core logs through its own class, the lines go to the Android log
+		org.lqzs.sorene.io.Log.setPrinter((priority, tag, msg, tr) ->
+				Log.println(priority, tag, tr != null ? msg + '\n' + Log.getStackTraceString(tr) : msg));
+	}
+
+	/**
+	 * Creates the key pair whose public key the receiver shows in its QR code, replacing the
+	 * one shown before.
+	 */
+	synchronized KeyExchange publishKey() throws NoSuchAlgorithmException {
+		publishedKey = new KeyExchange();
+		return publishedKey;
+	}
+
+	@Nullable
+	synchronized KeyExchange getPublishedKey() {
+		return publishedKey;
+	}
+
+	/**
+	 * A published key serves one session, a second sender has to run the key exchange.
+	 */
+	synchronized void retirePublishedKey(KeyExchange key) {
+		if (publishedKey == key) {
+			publishedKey = null;
+		}
+	}
 
 	static void createNotificationChannels(NotificationManager manager, Resources res) {
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -40,6 +79,20 @@ public class Sorene extends Application {
 		}
 	}
 
+	/**
+	 * @return {@code nanos} rounded to the two largest units, like "1h 05m" or "3m 20s"
+	 */
+	public static String formatDuration(long nanos) {
+		final long seconds = nanos / 1000000000L;
+		if (seconds < 60) {
+			return seconds + "s";
+		} else if (seconds < 60 * 60) {
+			return String.format(Locale.ROOT, "%dm %02ds", seconds / 60, seconds % 60);
+		} else {
+			return String.format(Locale.ROOT, "%dh %02dm", seconds / 3600, seconds / 60 % 60);
+		}
+	}
+
 	public static String formatSize(double size) {
 		if (size < 2.0 * 1024.0) {
 			return prettyFormat.format(size) + "B";
@@ -1,11 +1,13 @@
 package org.lqzs.sorene;
 
+import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Handler;
@@ -14,28 +16,128 @@ import android.os.PowerManager;
 import android.util.Log;
 
 import androidx.annotation.CallSuper;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
-import androidx.documentfile.provider.DocumentFile;
 
-import org.lqzs.sorene.io.ProgressReporter;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.lqzs.sorene.io.RateCounter;
+import org.lqzs.sorene.security.CipherSuite;
+import org.lqzs.sorene.security.KeyExchange;
+import org.lqzs.sorene.security.SessionTicket;
+import org.lqzs.sorene.session.Platform;
+import org.lqzs.sorene.session.Progress;
+import org.lqzs.sorene.session.Transfer;
 
 import static org.lqzs.sorene.Sorene.CHANNEL_TRANSFER_RESULT;
 import static org.lqzs.sorene.Sorene.CHANNEL_TRANSFER_STATE;
 import static org.lqzs.sorene.Sorene.LOG_TAG;
 
-public abstract class TransferService extends Service {
-	final static int TcpBufferSize = 512 * 1024;
-	final static int BufferSize = 512 * 1024;
+/**
+ * Runs a {@link Transfer} in the foreground with a notification, and keeps what it needs between
+ * sessions in the preferences.
+ */
+public abstract class TransferService extends Service implements Platform {
 	private static PowerManager.WakeLock wakeLock = null;
 	private static WifiManager.WifiLock wifiLock = null;
 	final Handler handler = new Handler(Looper.myLooper());
-	DocumentFile root = null;
 	Notification.Builder builder;
 	NotificationManager notificationManager = null;
-	Thread thread = null;
+	Transfer transfer = null;
 	int startId = 0;
 	boolean result = false;
 
+	/**
+	 * The heap of this device by its memory class.
+	 */
+	@Override
+	public long getHeapSize() {
+		final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+		return (long) activityManager.getMemoryClass() * 1024 * 1024;
+	}
+
+	/**
+	 * Throughput of every cipher suite on this device. It is measured once and kept in the
+	 * preferences until the system is updated.
+	 */
+	@Override
+	public Map<CipherSuite, Long> getSuiteRates(boolean integrityOnly) {
+		final SharedPreferences preferences = getSharedPreferences("calibration", MODE_PRIVATE);
+		final boolean valid = Build.FINGERPRINT.equals(preferences.getString("fingerprint", null));
+		final SharedPreferences.Editor editor = preferences.edit();
+		if (!valid) {
+			editor.clear().putString("fingerprint", Build.FINGERPRINT);
+		}
+		final Map<CipherSuite, Long> rates = new EnumMap<>(CipherSuite.class);
+		for (CipherSuite suite : CipherSuite.values()) {
+			if (suite == CipherSuite.INTEGRITY_ONLY && !integrityOnly) {
+				continue;
+			}
+			long rate = valid ? preferences.getLong(suite.name(), -1) : -1;
+			if (rate < 0) {
+				rate = suite.measure();
+				editor.putLong(suite.name(), rate);
+				Log.d(LOG_TAG, "calibrated " + suite + ": " + Sorene.formatSize(rate) + "/s");
+			}
+			rates.put(suite, rate);
+		}
+		editor.apply();
+		return rates;
+	}
+
+	@Override
+	public void storeTicket(String name, SessionTicket ticket) {
+		final SharedPreferences preferences = getSharedPreferences("tickets", MODE_PRIVATE);
+		final SharedPreferences.Editor editor = preferences.edit();
+		for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+			try {
+				if (SessionTicket.decode((String) entry.getValue()).isExpired()) {
+					editor.remove(entry.getKey());
+				}
+			} catch (IOException | ClassCastException e) {
+				editor.remove(entry.getKey());
+			}
+		}
+		editor.putString(name, ticket.encode()).apply();
+	}
+
+	@Nullable
+	@Override
+	public SessionTicket takeTicket(String name) {
+		final SharedPreferences preferences = getSharedPreferences("tickets", MODE_PRIVATE);
+		final String encoded = preferences.getString(name, null);
+		if (encoded == null) {
+			return null;
+		}
+		preferences.edit().remove(name).apply();
+		try {
+			final SessionTicket ticket = SessionTicket.decode(encoded);
+			return ticket.isExpired() ? null : ticket;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Nullable
+	@Override
+	public KeyExchange getPublishedKey() {
+		return ((Sorene) getApplicationContext()).getPublishedKey();
+	}
+
+	@Override
+	public void retirePublishedKey(KeyExchange key) {
+		((Sorene) getApplicationContext()).retirePublishedKey(key);
+	}
+
+	@Override
+	public void finished(boolean success) {
+		result = success;
+		handler.post(this::stop);
+	}
+
 	void acquireLocks() {
 		releaseLocks();
 		PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
@@ -118,6 +220,18 @@ public abstract class TransferService extends Service {
 		super.onDestroy();
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level == TRIM_MEMORY_UI_HIDDEN) {
+			return; // the transfer goes on without the UI
+		}
+		Log.d(LOG_TAG, "onTrimMemory(" + level + ")");
+		if (transfer != null && level >= TRIM_MEMORY_RUNNING_MODERATE) {
+			transfer.trimMemory(level >= TRIM_MEMORY_RUNNING_LOW);
+		}
+	}
+
 	void postUpdateButton() {
 		final MainActivity mainActivity = ((Sorene) getApplicationContext()).mainActivity;
 		if (mainActivity != null) {
@@ -126,9 +240,9 @@ public abstract class TransferService extends Service {
 	}
 
 	void stop() {
-		if (thread != null) {
-			thread.interrupt();
-			thread = null;
+		if (transfer != null) {
+			transfer.cancel();
+			transfer = null;
 		}
 		builder = null;
 		releaseLocks();
@@ -166,23 +280,53 @@ public abstract class TransferService extends Service {
 		notificationManager.notify(startId, builder.build());
 	}
 
-	protected static class Progress implements ProgressReporter {
-		public String text;
-		long now, max;
-
-		synchronized Progress get() {
-			Progress p = new Progress();
-			p.text = text;
-			p.now = now;
-			p.max = max;
-			return p;
+	/**
+	 * Shows the current file, the overall progress with files left and the time left, and how
+	 * full the buffer is.
+	 */
+	@Override
+	public void showProgress(Progress p, long bufferUsed, long bufferSize, int resizes, RateCounter rate) {
+		String text = p.text;
+		if (text != null) {
+			if (p.total > 0) {
+				final int percent = (int) (p.overall() * 100 / p.total);
+				final long eta = p.eta();
+				text += "\n" + (eta >= 0
+						? getResources().getString(R.string.overall_progress, percent, p.filesLeft,
+								Sorene.formatDuration(eta))
+						: getResources().getString(R.string.overall_progress_no_eta, percent, p.filesLeft));
+			}
+			text += "\n";
+			text += String.format(
+					Locale.getDefault(),
+					getResources().getString(resizes > 0 ? R.string.buffer_indicator_resized : R.string.buffer_indicator),
+					Sorene.formatSize(bufferUsed),
+					Sorene.formatSize(bufferSize),
+					resizes);
+		} else {
+			text = getResources().getString(R.string.notification_finishing);
 		}
-
-		@Override
-		public synchronized void report(String text, long now, long max) {
-			this.text = text;
-			this.now = now;
-			this.max = max;
+		final String contentText = text;
+		final boolean indeterminate = p.total == 0 && p.max == 0;
+		final int max, now;
+		if (indeterminate) {
+			max = 0;
+			now = 0;
+		} else if (p.total > 0) {
+			max = 1000;
+			now = (int) (p.overall() * 1000 / p.total);
+		} else {
+			max = 1000;
+			now = (int) (p.now * 1000 / p.max);
 		}
+		handler.post(() -> {
+			if (builder != null && notificationManager != null) {
+				builder.setContentText(contentText)
+						.setStyle(new Notification.BigTextStyle().bigText(contentText))
+						.setProgress(max, now, indeterminate)
+						.setSubText(Sorene.formatSize(rate.rate()) + "/s");
+				notificationManager.notify(startId, builder.build());
+			}
+		});
 	}
 }
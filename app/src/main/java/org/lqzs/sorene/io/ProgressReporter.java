@@ -1,5 +0,0 @@
-package org.lqzs.sorene.io;
-
-public interface ProgressReporter {
-	void report(String text, long now, long max);
-}
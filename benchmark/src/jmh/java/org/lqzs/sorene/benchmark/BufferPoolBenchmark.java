@@ -0,0 +1,98 @@
+package org.lqzs.sorene.benchmark;
+
+import org.lqzs.sorene.io.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of taking a buffer from a pool shared by several threads and giving it back. Buffers of
+ * up to 256KB stay in the magazine of the thread, larger ones go through the shared depot.
+ * <p>
+ * The handoff group pops on one thread and pushes on another, like a reader filling buffers
+ * that a stripe sends, so every buffer crosses magazines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+	@State(Scope.Benchmark)
+	public static class Shared {
+		@Param({"4096", "65536", "2097152"})
+		public int bufferSize;
+		BufferPool pool;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			pool = new BufferPool(bufferSize);
+		}
+	}
+
+	@State(Scope.Group)
+	public static class Handoff {
+		@Param({"4096", "65536", "2097152"})
+		public int bufferSize;
+		BufferPool pool;
+		final ArrayBlockingQueue<ByteBuffer> handed = new ArrayBlockingQueue<>(64);
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			pool = new BufferPool(bufferSize);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public ByteBuffer alone(Shared state) {
+		final ByteBuffer buf = state.pool.pop();
+		state.pool.push(buf);
+		return buf;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public ByteBuffer contended(Shared state) {
+		final ByteBuffer buf = state.pool.pop();
+		state.pool.push(buf);
+		return buf;
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void produce(Handoff state) throws InterruptedException {
+		final ByteBuffer buf = state.pool.pop();
+		// the consumer may have stopped already at the end of an iteration
+		if (!state.handed.offer(buf, 1, TimeUnit.MILLISECONDS)) {
+			state.pool.push(buf);
+		}
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void consume(Handoff state) throws InterruptedException {
+		final ByteBuffer buf = state.handed.poll(1, TimeUnit.MILLISECONDS);
+		if (buf != null) {
+			state.pool.push(buf);
+		}
+	}
+}
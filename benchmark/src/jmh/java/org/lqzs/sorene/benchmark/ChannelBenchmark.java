@@ -0,0 +1,105 @@
+package org.lqzs.sorene.benchmark;
+
+import org.lqzs.sorene.io.Channel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing one buffer from the producer to a consumer thread that drains the channel as
+ * fast as it can, for the ring channel and for the queue it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelBenchmark {
+	@Param({"ring", "ringDrain", "queue"})
+	public String channel;
+	@Param({"4096", "524288"})
+	public int bufferSize;
+
+	private Channel ring;
+	private QueueChannel queue;
+	private ByteBuffer buffer;
+	private Thread consumer;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final int capacity = 8 * 1024 * 1024;
+		buffer = ByteBuffer.allocate(bufferSize);
+		switch (channel) {
+		case "ring":
+			ring = new Channel(capacity);
+			consumer = new Thread(() -> {
+				try {
+					while (ring.read() != null) {
+					}
+				} catch (InterruptedException ignored) {
+				}
+			});
+			break;
+		case "ringDrain":
+			ring = new Channel(capacity);
+			consumer = new Thread(() -> {
+				final ByteBuffer[] batch = new ByteBuffer[16];
+				try {
+					while (ring.drain(batch) >= 0) {
+					}
+				} catch (InterruptedException ignored) {
+				}
+			});
+			break;
+		case "queue":
+			queue = new QueueChannel(capacity);
+			consumer = new Thread(() -> {
+				try {
+					while (queue.read() != null) {
+					}
+				} catch (InterruptedException ignored) {
+				}
+			});
+			break;
+		default:
+			throw new IllegalArgumentException(channel);
+		}
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		if (ring != null) {
+			ring.close();
+		} else {
+			queue.close();
+		}
+		// the queue doesn't wake a consumer that is blocked in take()
+		consumer.interrupt();
+		consumer.join();
+	}
+
+	@Benchmark
+	public void handoff() throws InterruptedException {
+		if (ring != null) {
+			ring.write(buffer);
+		} else {
+			queue.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.lqzs.sorene.benchmark;
+
+import org.lqzs.sorene.security.CipherSuite;
+import org.lqzs.sorene.security.FileEncryption;
+import org.lqzs.sorene.security.RecordCipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sealing and opening one chunk the way a stripe does, cut into records, per suite and
+ * chunk size. Divide the chunk size by the time for the throughput of one core. ChaCha20 needs
+ * a Java 11 runtime.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileEncryptionBenchmark {
+	@Param({"AES_GCM", "CHACHA20_POLY1305", "INTEGRITY_ONLY"})
+	public CipherSuite suite;
+	@Param({"4096", "65536", "2097152"})
+	public int chunkSize;
+
+	private RecordCipher sealing;
+	private RecordCipher opening;
+	private ByteBuffer plaintext;
+	private ByteBuffer sealed;
+	private ByteBuffer opened;
+	private int records;
+	private long record = 0;
+	/**
+	 * Two sealed copies to open in turns, the ciphers refuse to take the same nonce twice in a
+	 * row.
+	 */
+	private final ByteBuffer[] copies = new ByteBuffer[2];
+	private final long[] firstRecords = new long[2];
+	private int turn = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		final Random random = new Random(1);
+		final byte[] key = new byte[32];
+		random.nextBytes(key);
+		final FileEncryption encryption = new FileEncryption(key);
+		encryption.setSuite(suite);
+		final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+		sealing = encryption.startSealing(prefix);
+		opening = encryption.startOpening(new ByteArrayInputStream(prefix.toByteArray()));
+
+		final byte[] data = new byte[chunkSize];
+		random.nextBytes(data);
+		plaintext = ByteBuffer.wrap(data);
+		records = RecordCipher.recordsFor(chunkSize);
+		sealed = ByteBuffer.allocate(records * RecordCipher.MAX_SEALED_LENGTH);
+		opened = ByteBuffer.allocate(chunkSize);
+		for (int i = 0; i < copies.length; i++) {
+			firstRecords[i] = record;
+			copies[i] = ByteBuffer.allocate(sealed.capacity());
+			copies[i].put(seal()).flip();
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer seal() throws IOException {
+		sealed.clear();
+		for (int i = 0; i < records; i++) {
+			final ByteBuffer slice = plaintext.duplicate();
+			slice.position(i * RecordCipher.RECORD_SIZE);
+			slice.limit(Math.min(chunkSize, slice.position() + RecordCipher.RECORD_SIZE));
+			sealing.seal(record++, slice, i == records - 1, sealed);
+		}
+		sealed.flip();
+		return sealed;
+	}
+
+	@Benchmark
+	public ByteBuffer open() throws IOException {
+		opened.clear();
+		turn ^= 1;
+		final ByteBuffer in = copies[turn].duplicate();
+		for (int i = 0; i < records; i++) {
+			final int header = in.getInt();
+			final ByteBuffer record = in.slice();
+			record.limit(RecordCipher.lengthOf(header) + RecordCipher.TAG_LENGTH);
+			in.position(in.position() + record.limit());
+			opening.open(firstRecords[turn] + i, header, record, opened);
+		}
+		return opened;
+	}
+}
@@ -0,0 +1,141 @@
+package org.lqzs.sorene.benchmark;
+
+import org.lqzs.sorene.io.BufferPool;
+import org.lqzs.sorene.io.Channel;
+import org.lqzs.sorene.io.FrameReader;
+import org.lqzs.sorene.io.FrameWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of announcing the entries of a tree of photos the way the DirectoryReader does, and of
+ * parsing them back the way the DirectoryWriter does, for chunks of different sizes. Small
+ * chunks split more headers across buffers. The data of the files is left out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+	private final static int MaxChunkSize = 2 * 1024 * 1024;
+	@Param({"1000"})
+	public int files;
+	@Param({"4096", "65536"})
+	public int chunkSize;
+
+	private TempTree tree;
+	private List<TempTree.Entry> entries;
+	private BufferPool bufferPool;
+	private Channel channel;
+	private FrameWriter writer;
+	private final ByteBuffer[] batch = new ByteBuffer[16];
+	/**
+	 * The headers of all entries and the bye, as the writer packs them.
+	 */
+	private byte[] encoded;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		tree = new TempTree(files, 50);
+		entries = tree.getEntries();
+		bufferPool = new BufferPool(MaxChunkSize);
+		channel = new Channel(64 * 1024 * 1024);
+		writer = new FrameWriter(channel, bufferPool, chunkSize);
+
+		writeHeaders();
+		writer.writeHeader(new byte[0], 0);
+		writer.flush();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int n;
+		while ((n = channel.poll(batch)) > 0) {
+			for (int i = 0; i < n; i++) {
+				out.write(batch[i].array(), batch[i].arrayOffset() + batch[i].position(), batch[i].remaining());
+				bufferPool.push(batch[i]);
+				batch[i] = null;
+			}
+		}
+		encoded = out.toByteArray();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		tree.close();
+	}
+
+	private void writeHeaders() throws InterruptedException {
+		for (TempTree.Entry entry : entries) {
+			writer.writeHeader(entry.path.getBytes(StandardCharsets.UTF_8), entry.length);
+		}
+	}
+
+	@Benchmark
+	public void encode() throws InterruptedException {
+		writeHeaders();
+		writer.flush();
+		int n;
+		while ((n = channel.poll(batch)) > 0) {
+			for (int i = 0; i < n; i++) {
+				bufferPool.push(batch[i]);
+				batch[i] = null;
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Decoding {
+		private FrameBenchmark frames;
+		private Channel channel;
+		private FrameReader reader;
+
+		@Setup(Level.Trial)
+		public void setUp(FrameBenchmark frames) {
+			this.frames = frames;
+			channel = new Channel(64 * 1024 * 1024);
+			reader = new FrameReader(channel, frames.bufferPool, 16);
+		}
+
+		/**
+		 * Queues the encoded headers in chunks for the next {@link FrameBenchmark#decode(Decoding, Blackhole)}.
+		 */
+		@Setup(Level.Invocation)
+		public void feed() throws InterruptedException {
+			final byte[] encoded = frames.encoded;
+			for (int pos = 0; pos < encoded.length; pos += frames.chunkSize) {
+				final int len = Math.min(frames.chunkSize, encoded.length - pos);
+				final ByteBuffer buf = frames.bufferPool.pop(len);
+				buf.put(encoded, pos, len);
+				buf.flip();
+				channel.write(buf);
+			}
+		}
+	}
+
+	@Benchmark
+	public void decode(Decoding state, Blackhole blackhole) throws IOException, InterruptedException {
+		FrameReader.Header header;
+		while ((header = state.reader.readHeader()) != null) {
+			blackhole.consume(header);
+		}
+	}
+}
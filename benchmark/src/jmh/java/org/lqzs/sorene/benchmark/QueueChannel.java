@@ -0,0 +1,42 @@
+package org.lqzs.sorene.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The queue and semaphore based channel that {@link org.lqzs.sorene.io.Channel} replaced, kept as
+ * the baseline of {@link ChannelBenchmark}.
+ */
+class QueueChannel {
+	private final Semaphore available;
+	private final BlockingQueue<ByteBuffer> q;
+	private volatile boolean closed = false;
+
+	QueueChannel(int capacity) {
+		q = new LinkedBlockingQueue<>();
+		this.available = new Semaphore(capacity);
+	}
+
+	ByteBuffer read() throws InterruptedException {
+		if (closed && q.isEmpty()) {
+			return null;
+		}
+		ByteBuffer b = q.take();
+		available.release(b.remaining());
+		return b;
+	}
+
+	void write(ByteBuffer buffer) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("channel is closed");
+		}
+		available.acquire(buffer.remaining());
+		q.put(buffer);
+	}
+
+	void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,89 @@
+package org.lqzs.sorene.benchmark;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A directory tree in a temporary directory, standing in for the {@code DocumentFile} tree that
+ * the app sends from. Files are empty, only the names and the listing matter.
+ */
+class TempTree implements AutoCloseable {
+	/**
+	 * A file or directory as the reader announces it, {@code length} is -1 for directories.
+	 */
+	static class Entry {
+		final String path;
+		final long length;
+
+		Entry(String path, long length) {
+			this.path = path;
+			this.length = length;
+		}
+	}
+
+	private final Path root;
+	private final List<Entry> entries = new ArrayList<>();
+
+	/**
+	 * @param files   number of files
+	 * @param perDir  files per directory, directories are nested two deep
+	 */
+	TempTree(int files, int perDir) throws IOException {
+		root = Files.createTempDirectory("sorene-bench");
+		final Random random = new Random(files);
+		for (int i = 0; i < files; i++) {
+			final int dir = i / perDir;
+			final Path parent = root.resolve("album " + dir / 16).resolve("Camera " + dir);
+			Files.createDirectories(parent);
+			Files.createFile(parent.resolve(String.format("IMG_%08d_%06d.jpg", 20240000 + dir, random.nextInt(1000000))));
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (!dir.equals(root)) {
+					entries.add(new Entry(relative(dir), -1));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				// sizes of photos, the data itself is not sent by the benchmarks
+				entries.add(new Entry(relative(file), 2_000_000L + random.nextInt(6_000_000)));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private String relative(Path path) {
+		return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+	}
+
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	@Override
+	public void close() throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
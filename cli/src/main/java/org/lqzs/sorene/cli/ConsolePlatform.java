@@ -0,0 +1,263 @@
+package org.lqzs.sorene.cli;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.lqzs.sorene.io.Log;
+import org.lqzs.sorene.io.RateCounter;
+import org.lqzs.sorene.security.CipherSuite;
+import org.lqzs.sorene.security.KeyExchange;
+import org.lqzs.sorene.security.SessionTicket;
+import org.lqzs.sorene.session.Platform;
+import org.lqzs.sorene.session.Progress;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Runs a transfer in a terminal. Session tickets are kept in {@code ~/.sorene} so that the next
+ * run with the same peer skips the key exchange, and the progress goes to stderr. Runs at the
+ * same time take turns on the ticket file, so none of them loses another's ticket or reuses one
+ * that was taken.
+ */
+class ConsolePlatform implements Platform {
+	private static final String TicketFile = "tickets.properties";
+	private static final String LockFile = "tickets.lock";
+	/**
+	 * The file lock only keeps other processes out, a second lock in the same JVM throws.
+	 */
+	private static final Object TicketLock = new Object();
+	private final Path home;
+	@Nullable
+	private Map<CipherSuite, Long> rates = null;
+	private volatile boolean result = false;
+
+	ConsolePlatform() {
+		this(Paths.get(System.getProperty("user.home"), ".sorene"));
+	}
+
+	ConsolePlatform(Path home) {
+		this.home = home;
+	}
+
+	boolean getResult() {
+		return result;
+	}
+
+	/**
+	 * Throughput of every cipher suite, measured once per run: a desktop measures them in a
+	 * fraction of a second and may have changed its JVM since the last one.
+	 */
+	@Override
+	public synchronized Map<CipherSuite, Long> getSuiteRates(boolean integrityOnly) {
+		if (rates == null) {
+			rates = new EnumMap<>(CipherSuite.class);
+			for (CipherSuite suite : CipherSuite.values()) {
+				final long rate = suite.measure();
+				rates.put(suite, rate);
+				Log.d(LOG_TAG, "calibrated " + suite + ": " + formatSize(rate) + "/s");
+			}
+		}
+		final Map<CipherSuite, Long> result = new EnumMap<>(rates);
+		if (!integrityOnly) {
+			result.remove(CipherSuite.INTEGRITY_ONLY);
+		}
+		return result;
+	}
+
+	@Override
+	public void storeTicket(String name, SessionTicket ticket) {
+		synchronized (TicketLock) {
+			try {
+				final FileChannel lock = lockTickets();
+				try {
+					final Properties tickets = loadTickets();
+					for (String key : tickets.stringPropertyNames()) {
+						try {
+							if (SessionTicket.decode(tickets.getProperty(key)).isExpired()) {
+								tickets.remove(key);
+							}
+						} catch (IOException e) {
+							tickets.remove(key);
+						}
+					}
+					tickets.setProperty(name, ticket.encode());
+					saveTickets(tickets);
+				} finally {
+					lock.close();
+				}
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "can't store the ticket in " + home, e);
+			}
+		}
+	}
+
+	@Nullable
+	@Override
+	public SessionTicket takeTicket(String name) {
+		final String encoded;
+		synchronized (TicketLock) {
+			try {
+				final FileChannel lock = lockTickets();
+				try {
+					final Properties tickets = loadTickets();
+					encoded = tickets.getProperty(name);
+					if (encoded == null) {
+						return null;
+					}
+					tickets.remove(name);
+					saveTickets(tickets);
+				} finally {
+					lock.close();
+				}
+			} catch (IOException e) {
+				// a ticket that may still be on file must not be used
+				Log.w(LOG_TAG, "can't take the ticket from " + home, e);
+				return null;
+			}
+		}
+		try {
+			final SessionTicket ticket = SessionTicket.decode(encoded);
+			return ticket.isExpired() ? null : ticket;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private Properties loadTickets() {
+		final Properties tickets = new Properties();
+		final Path file = home.resolve(TicketFile);
+		if (Files.exists(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				tickets.load(in);
+			} catch (IOException | IllegalArgumentException e) {
+				Log.w(LOG_TAG, "can't read " + file + ", dropping the tickets", e);
+				tickets.clear();
+			}
+		}
+		return tickets;
+	}
+
+	/**
+	 * Locks the tickets against other runs until the returned channel is closed.
+	 */
+	private FileChannel lockTickets() throws IOException {
+		if (!Files.isDirectory(home)) {
+			Files.createDirectories(home);
+			restrict(home, "rwx------");
+		}
+		final FileChannel lock = FileChannel.open(home.resolve(LockFile), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		try {
+			lock.lock();
+		} catch (IOException | RuntimeException e) {
+			lock.close();
+			throw e;
+		}
+		return lock;
+	}
+
+	/**
+	 * Writes the tickets to a file only the user can read, they stand in for a key exchange.
+	 * The file is replaced in one step, a run that is killed halfway leaves the old one.
+	 */
+	private void saveTickets(Properties tickets) throws IOException {
+		final Path temporary = Files.createTempFile(home, TicketFile, ".tmp");
+		try {
+			restrict(temporary, "rw-------");
+			try (OutputStream out = Files.newOutputStream(temporary)) {
+				tickets.store(out, null);
+			}
+			Files.move(temporary, home.resolve(TicketFile), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static void restrict(Path path, String permissions) throws IOException {
+		try {
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+		} catch (UnsupportedOperationException ignored) {
+			// not a POSIX file system, the directory is as private as the user's home
+		}
+	}
+
+	@Override
+	public long getHeapSize() {
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	@Nullable
+	@Override
+	public KeyExchange getPublishedKey() {
+		return null;
+	}
+
+	@Override
+	public void retirePublishedKey(KeyExchange key) {
+	}
+
+	@Override
+	public void showProgress(Progress p, long bufferUsed, long bufferSize, int resizes, RateCounter rate) {
+		final StringBuilder line = new StringBuilder();
+		if (p.total > 0) {
+			line.append(p.overall() * 100 / p.total).append("%, ").append(p.filesLeft).append(" files left");
+			final long eta = p.eta();
+			if (eta >= 0) {
+				line.append(", ").append(formatDuration(eta));
+			}
+			line.append(" | ");
+		}
+		line.append(formatSize(rate.rate())).append("/s");
+		line.append(" | buffer ").append(formatSize(bufferUsed)).append('/').append(formatSize(bufferSize));
+		if (resizes > 0) {
+			line.append(", resized ").append(resizes).append('x');
+		}
+		if (p.text != null) {
+			line.append(" | ").append(p.text);
+		}
+		System.err.println(line);
+	}
+
+	@Override
+	public void finished(boolean success) {
+		result = success;
+	}
+
+	static String formatDuration(long nanos) {
+		final long seconds = nanos / 1000000000L;
+		if (seconds < 60) {
+			return seconds + "s";
+		} else if (seconds < 60 * 60) {
+			return String.format(Locale.ROOT, "%dm %02ds", seconds / 60, seconds % 60);
+		} else {
+			return String.format(Locale.ROOT, "%dh %02dm", seconds / 3600, seconds / 60 % 60);
+		}
+	}
+
+	static String formatSize(double size) {
+		if (size < 2.0 * 1024.0) {
+			return String.format(Locale.ROOT, "%.0fB", size);
+		} else if (size < 2.0 * 1024.0 * 1024.0) {
+			return String.format(Locale.ROOT, "%.1fKB", size / 1024.0);
+		} else if (size < 2.0 * 1024.0 * 1024.0 * 1024.0) {
+			return String.format(Locale.ROOT, "%.1fMB", size / 1024.0 / 1024.0);
+		} else {
+			return String.format(Locale.ROOT, "%.1fGB", size / 1024.0 / 1024.0 / 1024.0);
+		}
+	}
+}
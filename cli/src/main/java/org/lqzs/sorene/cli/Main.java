@@ -0,0 +1,173 @@
+package org.lqzs.sorene.cli;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lqzs.sorene.io.FileStorage;
+import org.lqzs.sorene.io.Log;
+import org.lqzs.sorene.session.Receiver;
+import org.lqzs.sorene.session.Sender;
+import org.lqzs.sorene.session.Transfer;
+
+/**
+ * Sends files to or receives them from a Sorene app or another instance of this tool, with the
+ * same protocol, pipeline and crypto as the app.
+ */
+public class Main {
+	private static final String Usage = "usage:\n"
+			+ "  sorene send [--port N] [--streams N] [--no-delta] [--no-compress] [--integrity] [--verbose]\n"
+			+ "              HOST[,HOST...] PATH...\n"
+			+ "  sorene receive [--port N] [--integrity] [--keep] [--verbose] DIR\n"
+			+ "\n"
+			+ "The paths that are sent must be in the same directory, they arrive in DIR. A session\n"
+			+ "that starts while another one is receiving arrives in a folder of its own, named\n"
+			+ "after the sender. --integrity allows a suite that authenticates but doesn't encrypt,\n"
+			+ "--keep receives one session after another until interrupted.";
+	private static final int ExitUsage = 2;
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			usage(null);
+		}
+		final List<String> operands = new ArrayList<>();
+		int port = Transfer.DefaultPort;
+		int streams = 0;
+		boolean delta = true, compress = true, integrityOnly = false, keep = false;
+		for (int i = 1; i < args.length; i++) {
+			final String arg = args[i];
+			switch (arg) {
+				case "--port":
+					port = number(args, ++i, 1, 65535);
+					break;
+				case "--streams":
+					streams = number(args, ++i, 1, Transfer.MaxStreams);
+					break;
+				case "--no-delta":
+					delta = false;
+					break;
+				case "--no-compress":
+					compress = false;
+					break;
+				case "--integrity":
+					integrityOnly = true;
+					break;
+				case "--keep":
+					keep = true;
+					break;
+				case "--verbose":
+					Log.setPrinter(new Log.StreamPrinter(System.err, Log.DEBUG));
+					break;
+				case "--":
+					while (++i < args.length) {
+						operands.add(args[i]);
+					}
+					break;
+				default:
+					if (arg.startsWith("--")) {
+						usage("unknown option " + arg);
+					}
+					operands.add(arg);
+			}
+		}
+
+		final ConsolePlatform platform = new ConsolePlatform();
+		final Transfer transfer;
+		switch (args[0]) {
+			case "send": {
+				if (operands.size() < 2) {
+					usage("send needs a host and at least one path");
+				}
+				final String[] hosts = operands.get(0).split(",");
+				Path parent = null;
+				final String[] files = new String[operands.size() - 1];
+				for (int i = 1; i < operands.size(); i++) {
+					final Path path = Paths.get(operands.get(i)).toAbsolutePath().normalize();
+					if (!Files.exists(path) || path.getFileName() == null) {
+						usage("can't send " + operands.get(i));
+					}
+					if (parent != null && !parent.equals(path.getParent())) {
+						usage("the paths must be in the same directory");
+					}
+					parent = path.getParent();
+					files[i - 1] = path.getFileName().toString();
+				}
+				final Sender sender = new Sender(platform, new FileStorage(parent), files, hosts, port);
+				sender.setStreams(streams);
+				sender.setDelta(delta);
+				sender.setCompress(compress);
+				sender.setIntegrityOnly(integrityOnly);
+				transfer = sender;
+				break;
+			}
+			case "receive": {
+				if (operands.size() != 1) {
+					usage("receive needs one directory");
+				}
+				final Path directory = Paths.get(operands.get(0)).toAbsolutePath().normalize();
+				if (!Files.isDirectory(directory)) {
+					usage(directory + " is not a directory");
+				}
+				final Receiver receiver = new Receiver(platform, new FileStorage(directory), port);
+				receiver.setIntegrityOnly(integrityOnly);
+				receiver.setKeepListening(keep);
+				transfer = receiver;
+				System.err.println("listening on port " + port);
+				break;
+			}
+			default:
+				usage("unknown command " + args[0]);
+				return;
+		}
+
+		// Ctrl-C ends the transfer like the stop button of the notification
+		final Thread hook = new Thread(() -> {
+			transfer.cancel();
+			try {
+				transfer.join();
+			} catch (InterruptedException ignored) {
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(hook);
+		transfer.start();
+		try {
+			transfer.join();
+		} catch (InterruptedException e) {
+			transfer.cancel();
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// interrupted, the hook waits for the transfer and the JVM exits after it
+			return;
+		}
+		final boolean success = platform.getResult();
+		System.err.println(success ? "done" : "failed");
+		System.exit(success ? 0 : 1);
+	}
+
+	private static int number(String[] args, int i, int min, int max) {
+		if (i >= args.length) {
+			usage(args[i - 1] + " needs a value");
+		}
+		try {
+			final int value = Integer.parseInt(args[i]);
+			if (value >= min && value <= max) {
+				return value;
+			}
+		} catch (NumberFormatException ignored) {
+		}
+		usage(args[i - 1] + " must be between " + min + " and " + max);
+		return 0;
+	}
+
+	private static void usage(String error) {
+		if (error != null) {
+			System.err.println("sorene: " + error);
+		}
+		System.err.println(Usage);
+		System.exit(ExitUsage);
+	}
+}
@@ -13,7 +13,7 @@ public class AverageRateCounter extends RateCounter {
 	}
 
 	@Override
-	public long rate() {
+	public synchronized long rate() {
 		final long rate = super.rate();
 		sum += rate - values[pos];
 		values[pos] = rate;
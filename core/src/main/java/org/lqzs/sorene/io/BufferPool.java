@@ -0,0 +1,232 @@
+package org.lqzs.sorene.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles buffers in power-of-two size classes from 4KB up to the largest buffer size.
+ * <p>
+ * Every thread keeps a small magazine of recently pushed buffers that it can pop again without
+ * locking; everything else goes to a shared depot per size class. The depots never hold more
+ * than {@code maxPooledBytes}, buffers pushed beyond that are left to the garbage collector, and
+ * {@link #trim(long)} gives memory back when the system runs low.
+ */
+public class BufferPool {
+	private final static int MinClassSize = 4 * 1024;
+	private final static int MagazineBytes = 256 * 1024;
+	private final static int MagazineSlots = 4;
+	private final int[] classSizes;
+	private final boolean direct;
+	private final long maxPooledBytes;
+	private final List<ArrayDeque<ByteBuffer>> depots;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final ThreadLocal<Magazine> magazines = new ThreadLocal<>();
+	/**
+	 * Bumped by {@link #trim(long)}, magazines filled before are emptied on their next use.
+	 */
+	private volatile int generation = 0;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder allocatedBytes = new LongAdder();
+
+	public BufferPool(int bufferSize) {
+		this(bufferSize, false, 16 * 1024 * 1024);
+	}
+
+	public BufferPool(int bufferSize, boolean direct, long maxPooledBytes) {
+		int count = 1;
+		for (int size = MinClassSize; size < bufferSize; size <<= 1) {
+			count++;
+		}
+		classSizes = new int[count];
+		for (int i = 0, size = MinClassSize; i < count - 1; i++, size <<= 1) {
+			classSizes[i] = size;
+		}
+		classSizes[count - 1] = bufferSize;
+		depots = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			depots.add(new ArrayDeque<>());
+		}
+		this.direct = direct;
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	public int getBufferSize() {
+		return classSizes[classSizes.length - 1];
+	}
+
+	/**
+	 * @return a buffer of the largest size class
+	 */
+	public ByteBuffer pop() {
+		return popClass(classSizes.length - 1);
+	}
+
+	/**
+	 * @return a buffer of at least {@code size} bytes, sizes above the largest class are
+	 * allocated exactly and not recycled
+	 */
+	public ByteBuffer pop(int size) {
+		final int index = classOf(size);
+		if (index < 0) {
+			misses.increment();
+			return allocate(size);
+		}
+		return popClass(index);
+	}
+
+	public void push(ByteBuffer buf) {
+		if (buf.isDirect() != direct) {
+			return;
+		}
+		final int index = classOf(buf.capacity());
+		if (index < 0 || classSizes[index] != buf.capacity()) {
+			return;
+		}
+		final Magazine magazine = magazine();
+		if (magazine.push(index, buf)) {
+			return;
+		}
+		if (pooledBytes.addAndGet(buf.capacity()) > maxPooledBytes) {
+			pooledBytes.addAndGet(-buf.capacity());
+			return;
+		}
+		final ArrayDeque<ByteBuffer> depot = depots.get(index);
+		synchronized (depot) {
+			depot.push(buf);
+		}
+	}
+
+	/**
+	 * Drops pooled buffers until at most {@code keepBytes} are left in the depots. Buffers in
+	 * the magazines of other threads are dropped when those threads next use the pool.
+	 */
+	public void trim(long keepBytes) {
+		generation++;
+		for (int i = classSizes.length - 1; i >= 0 && pooledBytes.get() > keepBytes; i--) {
+			final ArrayDeque<ByteBuffer> depot = depots.get(i);
+			synchronized (depot) {
+				while (pooledBytes.get() > keepBytes && depot.poll() != null) {
+					pooledBytes.addAndGet(-classSizes[i]);
+				}
+			}
+		}
+	}
+
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "BufferPool{hits=%d misses=%d allocated=%d pooled=%d}",
+				getHits(), getMisses(), getAllocatedBytes(), getPooledBytes());
+	}
+
+	private ByteBuffer popClass(int index) {
+		ByteBuffer b = magazine().pop(index);
+		if (b == null) {
+			final ArrayDeque<ByteBuffer> depot = depots.get(index);
+			synchronized (depot) {
+				b = depot.poll();
+			}
+			if (b != null) {
+				pooledBytes.addAndGet(-b.capacity());
+			}
+		}
+		if (b == null) {
+			misses.increment();
+			return allocate(classSizes[index]);
+		}
+		hits.increment();
+		b.clear();
+		b.order(ByteOrder.BIG_ENDIAN);
+		return b;
+	}
+
+	private ByteBuffer allocate(int size) {
+		allocatedBytes.add(size);
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	private int classOf(int size) {
+		for (int i = 0; i < classSizes.length; i++) {
+			if (size <= classSizes[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private Magazine magazine() {
+		Magazine magazine = magazines.get();
+		if (magazine == null) {
+			magazine = new Magazine(classSizes.length);
+			magazines.set(magazine);
+		}
+		final int generation = this.generation;
+		if (magazine.generation != generation) {
+			magazine.clear();
+			magazine.generation = generation;
+		}
+		return magazine;
+	}
+
+	private static class Magazine {
+		private final ByteBuffer[][] slots;
+		private final int[] counts;
+		private int bytes = 0;
+		int generation;
+
+		Magazine(int classes) {
+			slots = new ByteBuffer[classes][MagazineSlots];
+			counts = new int[classes];
+		}
+
+		ByteBuffer pop(int index) {
+			if (counts[index] == 0) {
+				return null;
+			}
+			final ByteBuffer b = slots[index][--counts[index]];
+			slots[index][counts[index]] = null;
+			bytes -= b.capacity();
+			return b;
+		}
+
+		boolean push(int index, ByteBuffer b) {
+			if (counts[index] == MagazineSlots || bytes + b.capacity() > MagazineBytes) {
+				return false;
+			}
+			slots[index][counts[index]++] = b;
+			bytes += b.capacity();
+			return true;
+		}
+
+		void clear() {
+			for (int i = 0; i < slots.length; i++) {
+				while (counts[i] > 0) {
+					slots[i][--counts[i]] = null;
+				}
+			}
+			bytes = 0;
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands buffers from one producer thread to one consumer thread through a ring of slots, with
+ * backpressure on the number of bytes in flight.
+ * <p>
+ * Only one thread may write and one thread may read at a time. Several threads can take turns on
+ * either side as long as they serialize among themselves, which is what the stripes and the
+ * {@link Reassembler} do. A side that has to wait spins briefly, then publishes itself as the
+ * waiter, checks again and parks; the other side unparks the waiter after every change.
+ * <p>
+ * Channels of concurrent sessions can share a {@link MemoryBudget} on top of their own
+ * capacity. The capacity can be changed while the channel is in use, see {@link ChannelSizer}.
+ */
+public class Channel {
+	// spinning only pays off when the other side runs on another core
+	private final static int SpinCount = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+	private final static int MaxSlots = 4096;
+	private volatile int capacity;
+	@Nullable
+	private final MemoryBudget budget;
+	private final ByteBuffer[] slots;
+	private final int mask;
+	/**
+	 * Next slot to read, only advanced by the consumer.
+	 */
+	private final AtomicLong head = new AtomicLong();
+	/**
+	 * Next slot to write, only advanced by the producer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong available;
+	/**
+	 * Bytes the consumer has taken so far.
+	 */
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicReference<Thread> waitingProducer = new AtomicReference<>();
+	private final AtomicReference<Thread> waitingConsumer = new AtomicReference<>();
+	private volatile boolean closed = false;
+	private volatile boolean cancelled = false;
+
+	public Channel(int capacity) {
+		this(capacity, null);
+	}
+
+	public Channel(int capacity, @Nullable MemoryBudget budget) {
+		this.capacity = capacity;
+		this.budget = budget;
+		this.available = new AtomicLong(capacity);
+		int slots = 16;
+		while (slots < MaxSlots && slots < capacity / 4096) {
+			slots <<= 1;
+		}
+		this.slots = new ByteBuffer[slots];
+		this.mask = slots - 1;
+	}
+
+	public int getAvailable() {
+		return (int) Math.max(0, available.get());
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the bytes in the channel and reserved for it, which can exceed the capacity for a
+	 * while after it was lowered
+	 */
+	public long getUsed() {
+		return Math.max(0, capacity - available.get());
+	}
+
+	public long getConsumed() {
+		return consumed.get();
+	}
+
+	/**
+	 * Changes how many bytes may be in flight. When it shrinks, the data already in the channel
+	 * stays and the producer waits until the consumer got below the new capacity.
+	 */
+	public void setCapacity(int capacity) {
+		final int old;
+		synchronized (this) {
+			old = this.capacity;
+			this.capacity = capacity;
+			available.addAndGet(capacity - old);
+		}
+		wakeUp(waitingProducer);
+	}
+
+	public ByteBuffer read() throws InterruptedException {
+		final long h = head.get();
+		if (!awaitData(h)) {
+			return null;
+		}
+		final int index = (int) h & mask;
+		final ByteBuffer b = slots[index];
+		slots[index] = null;
+		head.set(h + 1);
+		consumed.addAndGet(b.remaining());
+		release(b.remaining());
+		return b;
+	}
+
+	/**
+	 * Takes all buffers that are ready, up to the length of {@code dst}, waiting only if there
+	 * is none.
+	 *
+	 * @return the number of buffers stored in {@code dst}, or -1 if the channel is closed and
+	 * drained
+	 */
+	public int drain(ByteBuffer[] dst) throws InterruptedException {
+		final long h = head.get();
+		if (!awaitData(h)) {
+			return -1;
+		}
+		return take(h, dst);
+	}
+
+	/**
+	 * Like {@link #drain(ByteBuffer[])}, but returns 0 instead of waiting.
+	 */
+	public int poll(ByteBuffer[] dst) {
+		final long h = head.get();
+		if (tail.get() == h) {
+			// a buffer may have been written right before close()
+			return closed && tail.get() == h ? -1 : 0;
+		}
+		return take(h, dst);
+	}
+
+	private int take(long h, ByteBuffer[] dst) {
+		final int n = (int) Math.min(dst.length, tail.get() - h);
+		long bytes = 0;
+		for (int i = 0; i < n; i++) {
+			final int index = (int) (h + i) & mask;
+			dst[i] = slots[index];
+			slots[index] = null;
+			bytes += dst[i].remaining();
+		}
+		head.set(h + n);
+		consumed.addAndGet(bytes);
+		release(bytes);
+		return n;
+	}
+
+	public void write(@NonNull ByteBuffer buffer) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("channel is closed");
+		}
+		if (!acquire(buffer.remaining(), 0)) {
+			throw new IllegalStateException("channel is cancelled");
+		}
+		if (!put(buffer, 0)) {
+			release(buffer.remaining());
+			throw new IllegalStateException("channel is cancelled");
+		}
+	}
+
+	/**
+	 * Like {@link #write(ByteBuffer)}, but gives up if the consumer doesn't make room within
+	 * {@code timeoutNanos} or {@link #cancel() cancels} the channel.
+	 *
+	 * @return whether {@code buffer} was written
+	 */
+	public boolean offer(@NonNull ByteBuffer buffer, long timeoutNanos) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("channel is closed");
+		}
+		final long deadline = System.nanoTime() + Math.max(1, timeoutNanos);
+		if (!acquire(buffer.remaining(), deadline)) {
+			return false;
+		}
+		if (!put(buffer, deadline)) {
+			release(buffer.remaining());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for a free slot and fills it.
+	 *
+	 * @param deadline {@link System#nanoTime()} to give up at, or 0 to wait as long as it takes
+	 * @return false if the deadline passed or the channel was cancelled
+	 */
+	private boolean put(ByteBuffer buffer, long deadline) throws InterruptedException {
+		final long t = tail.get();
+		int spins = 0;
+		while (t - head.get() >= slots.length) {
+			if (cancelled) {
+				return false;
+			}
+			if (spins++ < SpinCount) {
+				continue;
+			}
+			waitingProducer.set(Thread.currentThread());
+			if (t - head.get() >= slots.length && !cancelled && !park(deadline)) {
+				waitingProducer.set(null);
+				return false;
+			}
+			waitingProducer.set(null);
+			checkInterrupted();
+		}
+		slots[(int) t & mask] = buffer;
+		tail.set(t + 1);
+		wakeUp(waitingConsumer);
+		return true;
+	}
+
+	/**
+	 * Takes {@code bytes} of the budget without blocking, for data that is held outside of the
+	 * channel until it is written.
+	 */
+	public boolean tryReserve(int bytes) {
+		while (true) {
+			final long a = available.get();
+			if (a < bytes) {
+				return false;
+			}
+			if (available.compareAndSet(a, a - bytes)) {
+				if (budget != null && !budget.tryAcquire(bytes)) {
+					available.addAndGet(bytes);
+					return false;
+				}
+				return true;
+			}
+		}
+	}
+
+	public void unreserve(int bytes) {
+		release(bytes);
+	}
+
+	public void close() {
+		closed = true;
+		wakeUp(waitingConsumer);
+	}
+
+	/**
+	 * Called by a consumer that gives up: a producer waiting for room gives up as well, and
+	 * whatever is written from now on is refused.
+	 */
+	public void cancel() {
+		cancelled = true;
+		wakeUp(waitingProducer);
+		if (budget != null) {
+			budget.wakeUp();
+		}
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Waits until slot {@code h} has been written.
+	 *
+	 * @return false if the channel was closed before
+	 */
+	private boolean awaitData(long h) throws InterruptedException {
+		int spins = 0;
+		while (tail.get() == h) {
+			if (closed) {
+				// a buffer may have been written right before close()
+				return tail.get() != h;
+			}
+			if (spins++ < SpinCount) {
+				continue;
+			}
+			waitingConsumer.set(Thread.currentThread());
+			if (tail.get() == h && !closed) {
+				LockSupport.park(this);
+			}
+			waitingConsumer.set(null);
+			checkInterrupted();
+		}
+		return true;
+	}
+
+	/**
+	 * @param deadline {@link System#nanoTime()} to give up at, or 0 to wait as long as it takes
+	 * @return false if the deadline passed or the channel was cancelled
+	 */
+	private boolean acquire(int bytes, long deadline) throws InterruptedException {
+		int spins = 0;
+		while (true) {
+			if (cancelled) {
+				return false;
+			}
+			final long a = available.get();
+			// a buffer larger than the whole channel is let through once the channel is empty
+			if (a >= bytes || a == capacity) {
+				if (available.compareAndSet(a, a - bytes)) {
+					if (budget != null) {
+						final boolean acquired;
+						try {
+							acquired = budget.acquire(bytes, deadline, this);
+						} catch (InterruptedException e) {
+							available.addAndGet(bytes);
+							throw e;
+						}
+						if (!acquired) {
+							available.addAndGet(bytes);
+							return false;
+						}
+					}
+					return true;
+				}
+				continue;
+			}
+			if (spins++ < SpinCount) {
+				continue;
+			}
+			// publish the waiter before checking again, release() reads it after its update
+			waitingProducer.set(Thread.currentThread());
+			if (available.get() == a && !cancelled && !park(deadline)) {
+				waitingProducer.set(null);
+				return false;
+			}
+			waitingProducer.set(null);
+			checkInterrupted();
+		}
+	}
+
+	private void release(long bytes) {
+		available.addAndGet(bytes);
+		if (budget != null) {
+			budget.release(bytes);
+		}
+		wakeUp(waitingProducer);
+	}
+
+	/**
+	 * Parks the producer until it is woken up or {@code deadline} passes.
+	 *
+	 * @return false if the deadline had already passed
+	 */
+	private boolean park(long deadline) {
+		if (deadline == 0) {
+			LockSupport.park(this);
+			return true;
+		}
+		final long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			return false;
+		}
+		LockSupport.parkNanos(this, remaining);
+		return true;
+	}
+
+	private static void checkInterrupted() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Unparks the thread waiting on the other side, once: until it gets to run again it must not
+	 * cost every following handoff another unpark.
+	 */
+	private static void wakeUp(AtomicReference<Thread> waiter) {
+		if (waiter.get() != null) {
+			final Thread thread = waiter.getAndSet(null);
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.lqzs.sorene.io;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Resizes a {@link Channel} from the rates at which it is filled and drained. The channel
+ * should hold what the producer delivers while the consumer stalls, like a storage provider
+ * that blocks on a flush or a link that drops out for a moment, and no more than that.
+ * <p>
+ * {@link #tick()} is called about once a second. A tick in which the consumer took less than
+ * a quarter of its usual rate while there was data counts as a stall. The capacity follows the
+ * rate times the longest stall seen so far, growing at once during a stall and shrinking by
+ * half at a time. The longest stall is forgotten a second per {@link #ShrinkAfter} calm ticks.
+ */
+public class ChannelSizer {
+	private final static int ShrinkAfter = 10;
+	private final static int Granularity = 1024 * 1024;
+	private final Channel channel;
+	private final int min;
+	private final int max;
+	private long lastConsumed;
+	private long lastProduced;
+	/**
+	 * Smoothed bytes per tick on either side, stalled ticks left out.
+	 */
+	private long producerRate = 0;
+	private long consumerRate = 0;
+	private int stall = 0;
+	private int longestStall = 1;
+	private int calm = 0;
+	private volatile int resizes = 0;
+
+	public ChannelSizer(Channel channel, int min, int max) {
+		this.channel = channel;
+		this.min = min;
+		this.max = Math.max(min, max);
+		this.lastConsumed = channel.getConsumed();
+		this.lastProduced = lastConsumed + channel.getUsed();
+	}
+
+	/**
+	 * @return how often the capacity changed
+	 */
+	public int getResizes() {
+		return resizes;
+	}
+
+	/**
+	 * @return whether the capacity was changed
+	 */
+	public synchronized boolean tick() {
+		final long consumed = channel.getConsumed();
+		final long used = channel.getUsed();
+		final long produced = consumed + used;
+		final long in = produced - lastProduced;
+		final long out = consumed - lastConsumed;
+		lastProduced = produced;
+		lastConsumed = consumed;
+
+		final boolean stalled = used > 0 && consumerRate > 0 && out < consumerRate / 4;
+		if (stalled) {
+			stall++;
+			longestStall = Math.max(longestStall, stall);
+			calm = 0;
+		} else {
+			stall = 0;
+			producerRate = producerRate == 0 ? in : (3 * producerRate + in) / 4;
+			consumerRate = consumerRate == 0 ? out : (3 * consumerRate + out) / 4;
+			if (++calm >= ShrinkAfter) {
+				// what was learned about stalls fades, a stall that comes back grows the channel again
+				calm = 0;
+				longestStall = Math.max(1, longestStall - 1);
+			}
+		}
+
+		final int capacity = channel.getCapacity();
+		final long target = clamp(Math.max(producerRate, consumerRate) * (longestStall + 1));
+		if (target > capacity && (stalled || target >= capacity + capacity / 4)) {
+			return resize(capacity, (int) target);
+		}
+		if (!stalled && target <= capacity / 2) {
+			return resize(capacity, (int) clamp(Math.max(target, capacity / 2)));
+		}
+		return false;
+	}
+
+	private long clamp(long bytes) {
+		final long rounded = (bytes + Granularity - 1) / Granularity * Granularity;
+		return Math.max(min, Math.min(max, rounded));
+	}
+
+	private boolean resize(int capacity, int target) {
+		if (target == capacity) {
+			return false;
+		}
+		channel.setCapacity(target);
+		resizes++;
+		Log.d(LOG_TAG, "channel " + capacity / 1024 + "K -> " + target / 1024 + "K, rates in="
+				+ producerRate / 1024 + "K/s out=" + consumerRate / 1024 + "K/s, stall " + longestStall + "s");
+		return true;
+	}
+}
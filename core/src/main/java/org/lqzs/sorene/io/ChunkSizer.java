@@ -0,0 +1,105 @@
+package org.lqzs.sorene.io;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Picks the size of the chunks that the {@link DirectoryReader} packs frames into, and of the
+ * send buffers of the stripes, from what a session has seen so far.
+ * <p>
+ * Before anything was sent the chunks follow the files: a tree of small files starts with small
+ * chunks, so that a frame goes out soon after its files were read, big media starts with large
+ * ones to save system calls. Once data flows, a chunk is sized to take about
+ * {@link #FrameNanos} on the link at the measured rate, but no more than four times the typical
+ * file. A send buffer holds twice the bandwidth-delay product of its stripe.
+ */
+public class ChunkSizer {
+	public final static int MinChunkSize = 64 * 1024;
+	private final static long FrameNanos = 20_000_000L;
+	private final static int MinSendBuffer = 64 * 1024;
+	private final static int MaxSendBuffer = 4 * 1024 * 1024;
+	private final int maxChunkSize;
+	/**
+	 * Largest chunk for the files of the session.
+	 */
+	private final int fileChunkSize;
+	private volatile int chunkSize;
+	private long lastBytes = -1;
+	private long lastTime;
+	private long bytesPerSecond = 0;
+
+	public ChunkSizer(Manifest manifest, int maxChunkSize) {
+		this.maxChunkSize = maxChunkSize;
+		this.fileChunkSize = clamp(4 * typicalFileSize(manifest));
+		this.chunkSize = fileChunkSize;
+	}
+
+	/**
+	 * @return the upper limit of the size bucket that holds the median file
+	 */
+	private static long typicalFileSize(Manifest manifest) {
+		final int[] histogram = manifest.getHistogram();
+		int seen = 0;
+		long limit = 4096;
+		for (int i = 0; i < histogram.length; i++, limit <<= 2) {
+			seen += histogram[i];
+			if (seen * 2 >= manifest.getFileCount()) {
+				break;
+			}
+		}
+		return limit;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Called about once a second with the bytes sent so far.
+	 *
+	 * @param links how many receivers share the bytes, each gets all of them
+	 * @return whether the chunk size changed
+	 */
+	public synchronized boolean update(long totalBytes, int links) {
+		final long now = System.nanoTime();
+		if (lastBytes < 0 || now <= lastTime) {
+			lastBytes = totalBytes;
+			lastTime = now;
+			return false;
+		}
+		final long rate = (totalBytes - lastBytes) * 1_000_000_000L / (now - lastTime) / Math.max(1, links);
+		lastBytes = totalBytes;
+		lastTime = now;
+		if (rate <= 0) {
+			return false; // nothing to learn from a stall
+		}
+		bytesPerSecond = bytesPerSecond == 0 ? rate : (3 * bytesPerSecond + rate) / 4;
+		final int size = Math.min(fileChunkSize, clamp(bytesPerSecond * FrameNanos / 1_000_000_000L));
+		if (size == chunkSize) {
+			return false;
+		}
+		Log.d(LOG_TAG, "chunk " + chunkSize / 1024 + "K -> " + size / 1024 + "K at " + bytesPerSecond / 1024 + "K/s");
+		chunkSize = size;
+		return true;
+	}
+
+	/**
+	 * @return the send buffer for one of {@code streams} stripes, or 0 before a rate is known
+	 */
+	public synchronized int sendBufferSize(long rttNanos, int streams) {
+		if (bytesPerSecond == 0) {
+			return 0;
+		}
+		final long bdp = bytesPerSecond / Math.max(1, streams) * Math.max(1, rttNanos) / 1_000_000_000L;
+		return (int) Math.max(MinSendBuffer, Math.min(MaxSendBuffer, 2 * bdp));
+	}
+
+	/**
+	 * @return the power of two nearest below {@code bytes}, within the chunk limits
+	 */
+	private int clamp(long bytes) {
+		if (bytes >= maxChunkSize) {
+			return maxChunkSize;
+		}
+		return (int) Math.max(MinChunkSize, Long.highestOneBit(Math.max(1, bytes)));
+	}
+}
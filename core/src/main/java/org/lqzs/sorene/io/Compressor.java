@@ -0,0 +1,219 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Decides per file whether compression pays off and compresses on the sending side.
+ * <p>
+ * Files of formats that are compressed already are skipped by their extension, the rest by an
+ * entropy probe of the first read-ahead buffer, or of a block read from the file if there is
+ * none. The time spent in the deflater is compared with the time the saved bytes would have
+ * taken on the network, and compression turns itself off while it costs more than it saves.
+ * After {@link #RetryBytes} sent raw it is tried again, the link may have become slower.
+ */
+public class Compressor {
+	private final static int MinLength = 4 * 1024;
+	private final static int ProbeLength = 64 * 1024;
+	/**
+	 * Bits per byte above which data is taken to be compressed already.
+	 */
+	private final static double MaxEntropy = 7.5;
+	private final static long SampleBytes = 16 * 1024 * 1024;
+	private final static long RetryBytes = 256 * 1024 * 1024;
+	private final static Set<String> CompressedTypes = new HashSet<>(Arrays.asList(
+			"application/zip",
+			"application/gzip",
+			"application/x-gzip",
+			"application/x-bzip2",
+			"application/x-xz",
+			"application/x-7z-compressed",
+			"application/x-rar-compressed",
+			"application/java-archive",
+			"application/vnd.android.package-archive",
+			"application/epub+zip",
+			"application/pdf"));
+	private final static Set<String> UncompressedTypes = new HashSet<>(Arrays.asList(
+			"image/bmp",
+			"image/x-ms-bmp",
+			"image/svg+xml",
+			"image/tiff",
+			"audio/x-wav",
+			"audio/wav"));
+	private final BufferPool bufferPool;
+	private final RateCounter network;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final long startTime = System.nanoTime();
+	private final long startBytes;
+	private boolean enabled = true;
+	private long sampleIn = 0;
+	private long sampleSaved = 0;
+	private long sampleNanos = 0;
+	private long skipped = 0;
+
+	/**
+	 * @param network counts the bytes that go out on the sockets
+	 */
+	public Compressor(BufferPool bufferPool, RateCounter network) {
+		this.bufferPool = bufferPool;
+		this.network = network;
+		this.startBytes = network.total();
+	}
+
+	/**
+	 * @param mime the type of the file by its name, or null if it isn't known
+	 */
+	boolean shouldCompress(@Nullable String mime, Prefetcher.OpenFile file) {
+		if (file.length < MinLength) {
+			return false;
+		}
+		if (!enabled) {
+			skipped += file.length;
+			if (skipped < RetryBytes) {
+				return false;
+			}
+			Log.d(LOG_TAG, "Compressor: trying again");
+			enabled = true;
+		}
+		if (isCompressedType(mime)) {
+			return false;
+		}
+		final ByteBuffer first = file.buffers.peek();
+		if (first != null) {
+			return entropy(first) <= MaxEntropy;
+		}
+		// a stream can't be probed without consuming it, the file goes out raw
+		return file.channel != null && probe(file.channel) <= MaxEntropy;
+	}
+
+	/**
+	 * Reads the start of a file that has no read-ahead buffer, without moving its position.
+	 *
+	 * @return the entropy of the block, or more than any data has if it can't be read
+	 */
+	private double probe(FileChannel channel) {
+		final ByteBuffer block = bufferPool.pop(ProbeLength);
+		try {
+			block.limit(ProbeLength);
+			int n;
+			do {
+				n = channel.read(block, block.position());
+			} while (n > 0 && block.hasRemaining());
+			block.flip();
+			return entropy(block);
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Compressor: probe failed", e);
+			return Double.MAX_VALUE;
+		} finally {
+			bufferPool.push(block);
+		}
+	}
+
+	static boolean isCompressedType(@Nullable String mime) {
+		if (mime == null || UncompressedTypes.contains(mime)) {
+			return false;
+		}
+		return mime.startsWith("image/") || mime.startsWith("video/") || mime.startsWith("audio/")
+				|| CompressedTypes.contains(mime);
+	}
+
+	/**
+	 * @return Shannon entropy of the start of {@code buf} in bits per byte
+	 */
+	static double entropy(ByteBuffer buf) {
+		final int length = Math.min(buf.remaining(), ProbeLength);
+		if (length == 0) {
+			return 0;
+		}
+		final int[] counts = new int[256];
+		final byte[] array = buf.array();
+		final int offset = buf.arrayOffset() + buf.position();
+		for (int i = 0; i < length; i++) {
+			counts[array[offset + i] & 0xff]++;
+		}
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				final double p = (double) count / length;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	/**
+	 * Writes the content of {@code in} as deflate chunks, each prefixed with its length, and a
+	 * 0 after the last one.
+	 *
+	 * @return the number of bytes read from {@code in}
+	 */
+	long compress(InputStream in, FrameWriter frames, ProgressReporter reporter, String name, long length)
+			throws IOException, InterruptedException {
+		final ByteBuffer input = bufferPool.pop();
+		long read = 0;
+		long written = 0;
+		long nanos = 0;
+		deflater.reset();
+		try {
+			int n;
+			while ((n = in.read(input.array(), input.arrayOffset(), input.capacity())) >= 0) {
+				final long start = System.nanoTime();
+				deflater.setInput(input.array(), input.arrayOffset(), n);
+				while (!deflater.needsInput()) {
+					written += frames.deflate(deflater);
+				}
+				nanos += System.nanoTime() - start;
+				read += n;
+				reporter.report(name, read, length);
+			}
+			final long start = System.nanoTime();
+			deflater.finish();
+			while (!deflater.finished()) {
+				written += frames.deflate(deflater);
+			}
+			nanos += System.nanoTime() - start;
+			frames.writeInt(0);
+		} finally {
+			bufferPool.push(input);
+		}
+		update(read, written, nanos);
+		return read;
+	}
+
+	private void update(long in, long out, long nanos) {
+		sampleIn += in;
+		sampleSaved += in - out;
+		sampleNanos += nanos;
+		if (sampleIn < SampleBytes) {
+			return;
+		}
+		final long elapsed = System.nanoTime() - startTime;
+		final long sent = network.total() - startBytes;
+		if (elapsed > 0 && sent > 0) {
+			final double savedNanos = sampleSaved * (double) elapsed / sent;
+			if (sampleNanos > savedNanos) {
+				Log.d(LOG_TAG, "Compressor: off, " + sampleNanos / 1000000 + "ms to save "
+						+ (long) (savedNanos / 1000000) + "ms");
+				enabled = false;
+				skipped = 0;
+			}
+		}
+		sampleIn = 0;
+		sampleSaved = 0;
+		sampleNanos = 0;
+	}
+
+	public void close() {
+		deflater.end();
+	}
+}
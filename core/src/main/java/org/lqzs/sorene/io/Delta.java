@@ -0,0 +1,263 @@
+package org.lqzs.sorene.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * rsync-style delta of a file against an older copy on the receiver.
+ * <p>
+ * The receiver cuts its copy into blocks and sends a {@link Signature}: a rolling weak checksum
+ * and a truncated SHA-256 of every block. The sender slides a window over the new file and
+ * writes a sequence of operations: a positive int is followed by that many literal bytes, a
+ * negative int {@code -(i + 1)} copies block {@code i} of the old copy, and 0 ends the file.
+ */
+public class Delta {
+	public final static int MinBlockSize = 64 * 1024;
+	public final static int MaxBlocks = 1 << 20;
+	public final static int StrongLength = 16;
+	private final static int MaxBlockSize = 1 << 30;
+	/**
+	 * Literal data is written out at least this often, so that it doesn't pile up in memory.
+	 */
+	private final static int MaxLiteral = 256 * 1024;
+
+	/**
+	 * Block size for a copy of {@code length} bytes, large enough to keep the signature below
+	 * {@link #MaxBlocks} blocks.
+	 */
+	static int blockSize(long length) {
+		int size = MinBlockSize;
+		while ((length + size - 1) / size > MaxBlocks && size < MaxBlockSize) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	static int weak(byte[] b, int off, int len) {
+		int a = 0, s = 0;
+		for (int i = 0; i < len; i++) {
+			a += b[off + i] & 0xff;
+			s += (len - i) * (b[off + i] & 0xff);
+		}
+		return (a & 0xffff) | (s << 16);
+	}
+
+	static byte[] strong(MessageDigest digest, byte[] b, int off, int len) {
+		digest.update(b, off, len);
+		return Arrays.copyOf(digest.digest(), StrongLength);
+	}
+
+	static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public static class Signature {
+		public final long length;
+		public final int blockSize;
+		final int[] weak;
+		final byte[] strong;
+		/**
+		 * Weak checksum in the upper and block index in the lower half, sorted for lookups.
+		 */
+		private long[] index;
+
+		Signature(long length, int blockSize, int[] weak, byte[] strong) {
+			this.length = length;
+			this.blockSize = blockSize;
+			this.weak = weak;
+			this.strong = strong;
+		}
+
+		/**
+		 * Computes the signature of the old copy, read from {@code in}.
+		 */
+		public static Signature compute(InputStream in, long length) throws IOException {
+			final int blockSize = blockSize(length);
+			final int blocks = (int) ((length + blockSize - 1) / blockSize);
+			final int[] weak = new int[blocks];
+			final byte[] strong = new byte[blocks * StrongLength];
+			final MessageDigest digest = newDigest();
+			final byte[] block = new byte[blockSize];
+			for (int i = 0; i < blocks; i++) {
+				final int len = (int) Math.min(blockSize, length - (long) i * blockSize);
+				for (int pos = 0; pos < len; ) {
+					final int read = in.read(block, pos, len - pos);
+					if (read < 0) {
+						throw new IOException("file is shorter than its size");
+					}
+					pos += read;
+				}
+				weak[i] = weak(block, 0, len);
+				System.arraycopy(strong(digest, block, 0, len), 0, strong, i * StrongLength, StrongLength);
+			}
+			return new Signature(length, blockSize, weak, strong);
+		}
+
+		int blockLength(int i) {
+			return (int) Math.min(blockSize, length - (long) i * blockSize);
+		}
+
+		/**
+		 * @return a block with the given checksums, or -1
+		 */
+		int find(int weakSum, byte[] b, int off, int len, MessageDigest digest) {
+			if (index == null) {
+				index = new long[weak.length];
+				for (int i = 0; i < weak.length; i++) {
+					index[i] = ((long) weak[i] << 32) | i;
+				}
+				Arrays.sort(index);
+			}
+			int i = Arrays.binarySearch(index, (long) weakSum << 32);
+			if (i < 0) {
+				i = -i - 1;
+			}
+			byte[] sum = null;
+			for (; i < index.length && (int) (index[i] >> 32) == weakSum; i++) {
+				final int block = (int) index[i];
+				if (blockLength(block) != len) {
+					continue;
+				}
+				if (sum == null) {
+					sum = strong(digest, b, off, len);
+				}
+				if (regionEquals(strong, block * StrongLength, sum)) {
+					return block;
+				}
+			}
+			return -1;
+		}
+
+		private static boolean regionEquals(byte[] a, int off, byte[] b) {
+			for (int i = 0; i < b.length; i++) {
+				if (a[off + i] != b[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeLong(length);
+			out.writeInt(blockSize);
+			for (int w : weak) {
+				out.writeInt(w);
+			}
+			out.write(strong);
+		}
+
+		public static Signature read(DataInput in) throws IOException {
+			final long length = in.readLong();
+			final int blockSize = in.readInt();
+			if (length < 1 || length > (long) MaxBlocks * MaxBlockSize || blockSize != blockSize(length)) {
+				throw new IOException("Invalid signature length=" + length + " blockSize=" + blockSize);
+			}
+			final int blocks = (int) ((length + blockSize - 1) / blockSize);
+			final int[] weak = new int[blocks];
+			for (int i = 0; i < blocks; i++) {
+				weak[i] = in.readInt();
+			}
+			final byte[] strong = new byte[blocks * StrongLength];
+			in.readFully(strong);
+			return new Signature(length, blockSize, weak, strong);
+		}
+	}
+
+	/**
+	 * Writes the operations that turn the old copy described by {@code signature} into the
+	 * content of {@code in}.
+	 *
+	 * @return the number of bytes read from {@code in}
+	 */
+	static long encode(InputStream in, Signature signature, FrameWriter frames, ProgressReporter reporter,
+			String name, long length) throws IOException, InterruptedException {
+		final int blockSize = signature.blockSize;
+		final MessageDigest digest = newDigest();
+		final byte[] data = new byte[2 * blockSize + MaxLiteral];
+		int literal = 0; // start of literal data not written yet
+		int start = 0; // start of the window
+		int end = 0; // end of the data read
+		boolean eof = false;
+		long read = 0;
+		int a = 0, b = 0; // rolling checksum of the window, valid if rolling
+		boolean rolling = false;
+		while (true) {
+			if (!eof && end - start < blockSize + 1) {
+				if (data.length - end < blockSize + 1) {
+					// make room: literals before the window go out first
+					writeLiteral(frames, data, literal, start);
+					System.arraycopy(data, start, data, 0, end - start);
+					end -= start;
+					start = 0;
+					literal = 0;
+				}
+				final int n = in.read(data, end, data.length - end);
+				if (n < 0) {
+					eof = true;
+				} else {
+					end += n;
+					read += n;
+					reporter.report(name, read, length);
+				}
+				continue;
+			}
+			final int len = Math.min(blockSize, end - start);
+			if (len == 0) {
+				break;
+			}
+			if (!rolling || len < blockSize) {
+				final int w = weak(data, start, len);
+				a = w & 0xffff;
+				b = w >>> 16;
+				rolling = len == blockSize;
+			}
+			final int block = signature.find((a & 0xffff) | (b << 16), data, start, len, digest);
+			if (block >= 0) {
+				writeLiteral(frames, data, literal, start);
+				frames.writeInt(-(block + 1));
+				start += len;
+				literal = start;
+				rolling = false;
+				continue;
+			}
+			if (len < blockSize) {
+				// the tail didn't match, it is all literal
+				start = end;
+				break;
+			}
+			// slide the window by one byte
+			final int out = data[start] & 0xff;
+			final int next = start + blockSize < end ? data[start + blockSize] & 0xff : 0;
+			a = (a - out + next) & 0xffff;
+			b = (b - blockSize * out + a) & 0xffff;
+			start++;
+			if (start + blockSize > end) {
+				rolling = false;
+			}
+			if (start - literal >= MaxLiteral) {
+				writeLiteral(frames, data, literal, start);
+				literal = start;
+			}
+		}
+		writeLiteral(frames, data, literal, end);
+		frames.writeInt(0);
+		return read;
+	}
+
+	private static void writeLiteral(FrameWriter frames, byte[] data, int from, int to)
+			throws InterruptedException {
+		if (to > from) {
+			frames.writeInt(to - from);
+			frames.write(data, from, to - from);
+		}
+	}
+}
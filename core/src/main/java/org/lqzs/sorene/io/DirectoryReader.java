@@ -0,0 +1,309 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+public class DirectoryReader extends Thread {
+	private final static int PrefetchThreads = 4;
+	private final static int PrefetchFiles = 16;
+	private final static int PrefetchBuffers = 4;
+	/**
+	 * Files with at least this much left are mapped rather than read.
+	 */
+	private final static long MapMinLength = 8 * 1024 * 1024;
+	private final static long MapWindow = 64 * 1024 * 1024;
+	private final ProgressReporter reporter;
+	private final Storage storage;
+	private final Manifest manifest;
+	private final Journal journal;
+	private final BufferPool bufferPool;
+	private final Prefetcher prefetcher;
+	private final FrameWriter frames;
+	private Compressor compressor = null;
+	private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+	private int prefetching = 0;
+	private boolean success = false;
+
+	/**
+	 * @param manifest  the entries to send, files that the receiver doesn't need are skipped
+	 * @param journal   what the receiver already has when a broken session is resumed, or null
+	 * @param chunkSize the first size of the frames and read-ahead buffers, see
+	 *                  {@link #setChunkSize(int)}
+	 */
+	public DirectoryReader(Storage storage, Manifest manifest, @Nullable Journal journal, Channel out,
+	                       ProgressReporter reporter, BufferPool bufferPool, int chunkSize) {
+		this.storage = storage;
+		this.manifest = manifest;
+		this.journal = journal;
+		this.reporter = reporter;
+		this.bufferPool = bufferPool;
+		this.prefetcher = new Prefetcher(storage, out, bufferPool, PrefetchThreads, PrefetchBuffers);
+		prefetcher.setBufferSize(chunkSize);
+		this.frames = new FrameWriter(out, bufferPool, chunkSize);
+	}
+
+	/**
+	 * Sends files that are worth it compressed.
+	 */
+	public void setCompressor(@Nullable Compressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Sets the size of the frames and read-ahead buffers from now on, see {@link ChunkSizer}.
+	 * Can be called while the reader runs.
+	 */
+	public void setChunkSize(int chunkSize) {
+		frames.setChunkSize(chunkSize);
+		prefetcher.setBufferSize(chunkSize);
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	private void sendEntry(final Manifest.Entry entry) throws IOException, InterruptedException {
+		if (entry.isDirectory()) {
+			Log.d(LOG_TAG, "Now at: " + entry.path);
+			enqueue(new Pending(entry.path, entry.name, 0, null, null));
+			return;
+		}
+		if (!entry.needed || entry.node == null || journal != null && journal.isCompleted(entry.path)) {
+			return;
+		}
+		final long offset = journal != null ? journal.getOffset(entry.path) : 0;
+		enqueue(new Pending(entry.path, entry.name, entry.length, prefetcher.submit(entry.node, offset),
+				offset == 0 ? entry.signature : null));
+	}
+
+	/**
+	 * Queues an entry behind the ones that are still being prefetched and sends the oldest
+	 * entries once the read-ahead window is full.
+	 */
+	private void enqueue(Pending entry) throws IOException, InterruptedException {
+		pending.add(entry);
+		if (entry.file != null) {
+			prefetching++;
+		}
+		while (prefetching > PrefetchFiles) {
+			send(pending.poll());
+		}
+	}
+
+	private void send(Pending entry) throws IOException, InterruptedException {
+		if (entry.file == null) {
+			writeHeader(entry.path, FrameWriter.DIRECTORY);
+			return;
+		}
+		prefetching--;
+		sendFile(entry);
+		reporter.completed(entry.length);
+	}
+
+	private void sendFile(Pending entry) throws IOException, InterruptedException {
+		final Prefetcher.OpenFile file;
+		try {
+			file = entry.file.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		if (file == null) {
+			return; // gone or unreadable
+		}
+		final long length = file.length;
+		if (entry.signature != null && file.offset == 0) {
+			sendDelta(entry, file);
+			return;
+		}
+		if (compressor != null && file.offset == 0
+				&& compressor.shouldCompress(storage.getMimeType(entry.name), file)) {
+			sendCompressed(entry, file);
+			return;
+		}
+		if (file.offset > 0) {
+			writeHeader(entry.path, FrameWriter.RESUME);
+			frames.writeLong(file.offset);
+			frames.writeLong(length);
+		} else {
+			writeHeader(entry.path, length);
+		}
+		Log.d(LOG_TAG, "sendFile: " + entry.name + " length=" + length + " offset=" + file.offset);
+		try {
+			long pos = file.offset;
+			reporter.report(entry.name, 0, 0);
+			int written;
+			while ((written = prefetcher.writeNext(file, frames)) >= 0) {
+				pos += written;
+				reporter.report(entry.name, pos, length);
+			}
+			if (file.channel != null) {
+				pos = sendChannel(entry, file, pos, length);
+			} else if (file.in != null && length > file.offset) {
+				int read;
+				while ((read = frames.read(file.in)) >= 0) {
+					pos += read;
+					reporter.report(entry.name, pos, length);
+				}
+			}
+		} finally {
+			prefetcher.discard(file);
+		}
+	}
+
+	/**
+	 * Sends the rest of a file that has a {@link FileChannel}: large files are
+	 * mapped a window at a time and copied straight into the frame buffers, the rest is read at
+	 * explicit positions. Data past the length that the file had when it was opened follows as
+	 * it does for streams.
+	 *
+	 * @return the position after the last byte sent
+	 */
+	private long sendChannel(Pending entry, Prefetcher.OpenFile file, long pos, long length)
+			throws IOException, InterruptedException {
+		long at = file.position;
+		if (length - at >= MapMinLength) {
+			try {
+				// a file that shrank since it was opened must not be mapped past its end
+				final long end = Math.min(length, file.channel.size());
+				while (at < end) {
+					final MappedByteBuffer map = file.channel.map(FileChannel.MapMode.READ_ONLY, at,
+							Math.min(MapWindow, end - at));
+					while (map.hasRemaining()) {
+						final int n = frames.put(map);
+						at += n;
+						pos += n;
+						reporter.report(entry.name, pos, length);
+					}
+				}
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "sendChannel: can't map " + entry.name + ", reading instead", e);
+			}
+		}
+		int read;
+		while ((read = frames.read(file.channel, at)) >= 0) {
+			at += read;
+			pos += read;
+			reporter.report(entry.name, pos, length);
+		}
+		return pos;
+	}
+
+	private void sendDelta(Pending entry, Prefetcher.OpenFile file) throws IOException, InterruptedException {
+		writeHeader(entry.path, FrameWriter.DELTA);
+		frames.writeLong(file.length);
+		frames.writeLong(entry.signature.length);
+		Log.d(LOG_TAG, "sendDelta: " + entry.name + " length=" + file.length
+				+ " base=" + entry.signature.length);
+		try {
+			reporter.report(entry.name, 0, 0);
+			Delta.encode(prefetcher.stream(file), entry.signature, frames, reporter, entry.name, file.length);
+		} finally {
+			prefetcher.discard(file);
+		}
+	}
+
+	private void sendCompressed(Pending entry, Prefetcher.OpenFile file) throws IOException, InterruptedException {
+		writeHeader(entry.path, FrameWriter.COMPRESSED);
+		frames.writeLong(file.length);
+		Log.d(LOG_TAG, "sendCompressed: " + entry.name + " length=" + file.length);
+		try {
+			reporter.report(entry.name, 0, 0);
+			compressor.compress(prefetcher.stream(file), frames, reporter, entry.name, file.length);
+		} finally {
+			prefetcher.discard(file);
+		}
+	}
+
+	private void writeHeader(String pathStr, long length) throws InterruptedException {
+		frames.writeHeader(pathStr.getBytes(StandardCharsets.UTF_8), length);
+	}
+
+	/**
+	 * Drops everything that was prefetched but not sent.
+	 */
+	private void cancelPending() {
+		prefetcher.shutdown();
+		final boolean interrupted = Thread.interrupted();
+		Pending entry;
+		while ((entry = pending.poll()) != null) {
+			if (entry.file == null) {
+				continue;
+			}
+			try {
+				final Prefetcher.OpenFile file = entry.file.get();
+				if (file != null) {
+					prefetcher.discard(file);
+				}
+			} catch (ExecutionException | InterruptedException | CancellationException ignored) {
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Pending {
+		final String path;
+		final String name;
+		/**
+		 * Size in the manifest, which the progress counts with.
+		 */
+		final long length;
+		/**
+		 * The prefetched file, or null for a directory.
+		 */
+		final Future<Prefetcher.OpenFile> file;
+		/**
+		 * Signature of the receiver's copy if the file is sent as a delta.
+		 */
+		final Delta.Signature signature;
+
+		Pending(String path, String name, long length, Future<Prefetcher.OpenFile> file,
+				Delta.Signature signature) {
+			this.path = path;
+			this.name = name;
+			this.length = length;
+			this.file = file;
+			this.signature = signature;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (Manifest.Entry entry : manifest.getEntries()) {
+				sendEntry(entry);
+			}
+			while (!pending.isEmpty()) {
+				send(pending.poll());
+			}
+			reporter.report(null, 0, 0);
+			frames.writeHeader(new byte[0], 0);
+			frames.close();
+			success = true;
+			Log.d(LOG_TAG, "DirectoryReader finished normally");
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "DirectoryReader", e);
+		} catch (InterruptedException e) {
+			Log.e(LOG_TAG, "DirectoryReader Interrupted", e);
+		} finally {
+			cancelPending();
+			if (compressor != null) {
+				compressor.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,498 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+public class DirectoryWriter extends Thread {
+	/**
+	 * Files of at least this size get their space reserved up front and are written to a hidden
+	 * temporary document first, so that a broken transfer never leaves a file of the full size.
+	 */
+	private final static long PreallocateMinLength = 4 * 1024 * 1024;
+	/**
+	 * Most buffers written with one gathering write.
+	 */
+	private final static int GatherBuffers = 16;
+	private final ProgressReporter reporter;
+	private final Storage storage;
+	private final DocumentTree tree;
+	private final BufferPool bufferPool;
+	private final Journal journal;
+	@Nullable
+	private WriteScheduler scheduler = null;
+	private final FrameReader frames;
+	private final ByteBuffer[] batch = new ByteBuffer[GatherBuffers];
+	private final ByteBuffer[] written = new ByteBuffer[GatherBuffers];
+	private boolean success = false;
+
+	/**
+	 * @param tree    index of the destination, shared with the manifest comparison
+	 * @param journal records what has been written, and is continued when the session is resumed
+	 */
+	public DirectoryWriter(DocumentTree tree, Journal journal, Channel in, ProgressReporter reporter,
+			BufferPool bufferPool) {
+		this.storage = tree.getStorage();
+		this.tree = tree;
+		this.journal = journal;
+		this.reporter = reporter;
+		this.bufferPool = bufferPool;
+		this.frames = new FrameReader(in, bufferPool, GatherBuffers);
+	}
+
+	/**
+	 * Takes turns on the storage with the writers of other sessions.
+	 */
+	public void setScheduler(@Nullable WriteScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	private void writeFile(final String path, final long length, final long offset)
+			throws IOException, InterruptedException {
+		if (length == FrameWriter.DIRECTORY) {
+			Log.d(LOG_TAG, "Now at: " + path);
+			tree.makeDirectories(path);
+			return;
+		}
+		// is File
+		Log.d(LOG_TAG, "writeFile: " + path + " length=" + length + " offset=" + offset);
+		final String name = path.substring(path.lastIndexOf('/') + 1);
+		if (offset > 0) {
+			resumeFile(path, name, length, offset);
+			return;
+		}
+		if (length >= PreallocateMinLength && writeLargeFile(path, name, length)) {
+			return;
+		}
+		final DocumentTree.Entry file = tree.createFile(path);
+
+		if (length == 0) {
+			if (file != null) {
+				journal.complete(path);
+			}
+			return;
+		}
+
+		OutputStream out = null;
+		if (file != null) {
+			out = storage.openOutputStream(file.node, 0);
+		} else {
+			Log.e(LOG_TAG, "Can't create file name=" + name);
+		}
+		copy(path, name, out, 0, length);
+	}
+
+	private static String tempPathOf(String path, String name) {
+		return path.substring(0, path.length() - name.length()) + "." + name + ".sorene";
+	}
+
+	/**
+	 * Whether {@code tree} still has the first {@code offset} bytes of a file that was cut off,
+	 * where {@link #resumeFile} looks for them. For a journal that an earlier session left.
+	 */
+	static boolean canResume(DocumentTree tree, String path, long length, long offset) {
+		if (length >= PreallocateMinLength) {
+			final DocumentTree.Entry temp = tree.find(tempPathOf(path, path.substring(path.lastIndexOf('/') + 1)));
+			if (temp != null) {
+				// its space is reserved up to the full length from the start
+				return !temp.directory;
+			}
+		}
+		final DocumentTree.Entry file = tree.find(path);
+		return file != null && !file.directory && file.length >= offset;
+	}
+
+	/**
+	 * Writes a large file through a channel into a temporary document with its space reserved,
+	 * and gives it its name once it is complete.
+	 *
+	 * @return false if the storage doesn't hand out a regular file, nothing has been read then
+	 */
+	private boolean writeLargeFile(final String path, final String name, final long length)
+			throws IOException, InterruptedException {
+		final String tempPath = tempPathOf(path, name);
+		final DocumentTree.Entry temp = tree.createFile(tempPath);
+		if (temp == null) {
+			return false;
+		}
+		final FileChannel out = storage.openChannel(temp.node, 0, length);
+		if (out == null) {
+			tree.delete(tempPath);
+			return false;
+		}
+		copy(path, name, out, 0, length);
+		finishTemp(path, tempPath, name);
+		return true;
+	}
+
+	/**
+	 * Replaces the file at {@code path} with the complete temporary document.
+	 */
+	private void finishTemp(String path, String tempPath, String name) throws IOException {
+		tree.delete(path);
+		if (!tree.rename(tempPath, name)) {
+			throw new IOException("can't rename " + tempPath);
+		}
+	}
+
+	/**
+	 * Rebuilds a file from blocks of the old copy and literal data. The result goes to a hidden
+	 * temporary document that replaces the old copy once it is complete.
+	 */
+	private void deltaFile(final String path, final long length, final long base)
+			throws IOException, InterruptedException {
+		Log.d(LOG_TAG, "deltaFile: " + path + " length=" + length + " base=" + base);
+		final String name = path.substring(path.lastIndexOf('/') + 1);
+		final DocumentTree.Entry old = tree.find(path);
+		if (old == null || old.directory) {
+			throw new IOException("no old copy of " + path);
+		}
+		final String tempPath = tempPathOf(path, name);
+		final DocumentTree.Entry temp = tree.createFile(tempPath);
+		if (temp == null) {
+			throw new IOException("can't create " + tempPath);
+		}
+		final int blockSize = Delta.blockSize(base);
+		final ByteBuffer block = bufferPool.pop(blockSize);
+		long pos = 0;
+		reporter.report(name, 0, 0);
+		try (FileChannel baseChannel = openForReading(old);
+		     OutputStream out = storage.openOutputStream(temp.node, 0)) {
+			if (baseChannel.size() != base) {
+				throw new IOException("old copy of " + path + " changed");
+			}
+			while (true) {
+				final int op = frames.readInt();
+				if (op == 0) {
+					break;
+				}
+				if (op > 0) {
+					if (op > length - pos) {
+						throw new IOException("delta of " + path + " too long");
+					}
+					transfer(out, op);
+					pos += op;
+				} else {
+					final long offset = (-(long) op - 1) * blockSize;
+					if (offset >= base) {
+						throw new IOException("invalid block " + (-(long) op - 1) + " in delta of " + path);
+					}
+					final int len = (int) Math.min(blockSize, base - offset);
+					if (len > length - pos) {
+						throw new IOException("delta of " + path + " too long");
+					}
+					block.clear();
+					block.limit(len);
+					while (block.hasRemaining()) {
+						if (baseChannel.read(block, offset + block.position()) < 0) {
+							throw new EOFException("old copy of " + path + " truncated");
+						}
+					}
+					write(out, block.array(), block.arrayOffset(), len);
+					pos += len;
+				}
+				reporter.report(name, pos, length);
+			}
+		} finally {
+			bufferPool.push(block);
+		}
+		if (pos != length) {
+			throw new IOException("delta of " + path + " has " + pos + " of " + length + " bytes");
+		}
+		finishTemp(path, tempPath, name);
+		journal.complete(path);
+	}
+
+	/**
+	 * Writes a file from the deflate chunks of a {@link Compressor}.
+	 */
+	private void inflateFile(final String path, final long length) throws IOException, InterruptedException {
+		Log.d(LOG_TAG, "inflateFile: " + path + " length=" + length);
+		final String name = path.substring(path.lastIndexOf('/') + 1);
+		final DocumentTree.Entry file = tree.createFile(path);
+		if (file == null) {
+			throw new IOException("can't create " + path);
+		}
+		final OutputStream out = storage.openOutputStream(file.node, 0);
+		final Inflater inflater = new Inflater(true);
+		final ByteBuffer output = bufferPool.pop();
+		long pos = 0;
+		journal.begin(path, 0);
+		reporter.report(name, 0, 0);
+		try {
+			while (true) {
+				int chunk = frames.readInt();
+				if (chunk == 0) {
+					break;
+				}
+				if (chunk < 0) {
+					throw new IOException("invalid chunk length " + chunk + " in " + path);
+				}
+				while (chunk > 0) {
+					final ByteBuffer current = frames.data();
+					final int len = Math.min(chunk, current.remaining());
+					inflater.setInput(current.array(), current.arrayOffset() + current.position(), len);
+					current.position(current.position() + len);
+					chunk -= len;
+					while (!inflater.needsInput() && !inflater.finished()) {
+						final int n = inflater.inflate(output.array(), output.arrayOffset(), output.capacity());
+						if (n == 0 && inflater.needsDictionary()) {
+							throw new IOException("invalid compressed data in " + path);
+						}
+						pos = writeInflated(out, output, n, pos, length, path);
+					}
+					journal.written(pos);
+					reporter.report(name, pos, length);
+				}
+			}
+			// all input is in, but the last block may still be inside the inflater when it
+			// filled the output buffer exactly
+			while (!inflater.finished()) {
+				final int n = inflater.inflate(output.array(), output.arrayOffset(), output.capacity());
+				if (n == 0) {
+					throw new IOException("compressed data of " + path + " ends early");
+				}
+				pos = writeInflated(out, output, n, pos, length, path);
+			}
+			journal.written(pos);
+		} catch (DataFormatException e) {
+			throw new IOException("invalid compressed data in " + path, e);
+		} finally {
+			inflater.end();
+			bufferPool.push(output);
+			out.close();
+		}
+		if (pos != length) {
+			throw new IOException("compressed data of " + path + " has " + pos + " of " + length + " bytes");
+		}
+		journal.complete(path);
+	}
+
+	/**
+	 * Writes {@code n} inflated bytes of {@code output} to the file at {@code pos}.
+	 *
+	 * @return the new position
+	 */
+	private long writeInflated(OutputStream out, ByteBuffer output, int n, long pos, long length, String path)
+			throws IOException, InterruptedException {
+		if (n > length - pos) {
+			throw new IOException("compressed data of " + path + " too long");
+		}
+		write(out, output.array(), output.arrayOffset(), n);
+		return pos + n;
+	}
+
+	private FileChannel openForReading(DocumentTree.Entry file) throws IOException {
+		final FileChannel channel = storage.openChannel(file.node);
+		if (channel == null) {
+			throw new IOException("can't open " + file.node);
+		}
+		return channel;
+	}
+
+	/**
+	 * Moves {@code count} bytes from the channel to {@code out}.
+	 */
+	private void transfer(OutputStream out, long count) throws IOException, InterruptedException {
+		while (count > 0) {
+			final ByteBuffer current = frames.data();
+			final int len = (int) Math.min(count, current.remaining());
+			write(out, current.array(), current.arrayOffset() + current.position(), len);
+			current.position(current.position() + len);
+			count -= len;
+		}
+	}
+
+	/**
+	 * Appends the rest of a file that was cut off when the previous session broke, in its
+	 * temporary document if it was written to one.
+	 */
+	private void resumeFile(final String path, final String name, final long length, final long offset)
+			throws IOException, InterruptedException {
+		final String tempPath = tempPathOf(path, name);
+		final DocumentTree.Entry temp = length >= PreallocateMinLength ? tree.find(tempPath) : null;
+		final DocumentTree.Entry file = temp != null ? temp : tree.find(path);
+		if (file == null || file.directory) {
+			throw new IOException("can't resume " + path);
+		}
+		final FileChannel channel = storage.openChannel(file.node, offset, temp != null ? length : offset);
+		if (channel != null) {
+			copy(path, name, channel, offset, length);
+		} else {
+			copy(path, name, storage.openOutputStream(file.node, offset), offset, length);
+		}
+		if (temp != null) {
+			finishTemp(path, tempPath, name);
+		}
+	}
+
+	/**
+	 * Moves the data of a file from the channel to {@code out}, which is closed afterwards.
+	 * Without {@code out} the data is read and dropped.
+	 */
+	private void copy(final String path, final String name, @Nullable final OutputStream out, final long offset,
+			final long length) throws IOException, InterruptedException {
+		if (out != null) {
+			journal.begin(path, offset);
+		}
+		try {
+			long pos = offset;
+			reporter.report(name, 0, 0);
+			while (pos < length) {
+				final ByteBuffer current = frames.data();
+				int len = (int) Math.min(length - pos, current.remaining());
+				if (out != null) {
+					write(out, current.array(), current.arrayOffset() + current.position(), len);
+				}
+				pos += len;
+				current.position(current.position() + len);
+				if (out != null) {
+					journal.written(pos);
+				}
+				reporter.report(name, pos, length);
+			}
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+		if (out != null) {
+			journal.complete(path);
+		}
+	}
+
+	/**
+	 * Like {@link #copy(String, String, OutputStream, long, long)}, but writes several buffers
+	 * at once when the channel has them ready.
+	 */
+	private void copy(final String path, final String name, final FileChannel out, final long offset,
+			final long length) throws IOException, InterruptedException {
+		journal.begin(path, offset);
+		try {
+			long pos = offset;
+			reporter.report(name, 0, 0);
+			while (pos < length) {
+				pos = gather(out, pos, length);
+				journal.written(pos);
+				reporter.report(name, pos, length);
+			}
+		} finally {
+			out.close();
+		}
+		journal.complete(path);
+	}
+
+	/**
+	 * Writes the data of the current buffer and of the buffers that follow without waiting, up
+	 * to {@code length}, with one gathering write.
+	 *
+	 * @return the position after the data written
+	 */
+	private long gather(FileChannel out, long pos, long length) throws IOException, InterruptedException {
+		int count = 0;
+		int done = 0;
+		long end = pos;
+		while (end < length && count < GatherBuffers) {
+			if (frames.current.remaining() < 1) {
+				final ByteBuffer next = count == 0 ? frames.next() : frames.poll();
+				if (next == null) {
+					if (count == 0) {
+						throw new EOFException("early EOF in writeFile");
+					}
+					break;
+				}
+				written[done++] = frames.current;
+				frames.current = next;
+			}
+			final ByteBuffer current = frames.current;
+			final int len = (int) Math.min(length - end, current.remaining());
+			final ByteBuffer view = current.duplicate();
+			view.limit(view.position() + len);
+			current.position(current.position() + len);
+			batch[count++] = view;
+			end += len;
+		}
+		beginWrite();
+		try {
+			long left = end - pos;
+			while (left > 0) {
+				left -= out.write(batch, 0, count);
+			}
+		} finally {
+			endWrite();
+		}
+		for (int i = 0; i < count; i++) {
+			batch[i] = null;
+		}
+		for (int i = 0; i < done; i++) {
+			bufferPool.push(written[i]);
+			written[i] = null;
+		}
+		return end;
+	}
+
+	private void write(OutputStream out, byte[] b, int off, int len) throws IOException, InterruptedException {
+		beginWrite();
+		try {
+			out.write(b, off, len);
+		} finally {
+			endWrite();
+		}
+	}
+
+	private void beginWrite() throws InterruptedException {
+		if (scheduler != null) {
+			scheduler.begin();
+		}
+	}
+
+	private void endWrite() {
+		if (scheduler != null) {
+			scheduler.end();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			do {
+				final FrameReader.Header header = frames.readHeader();
+				if (header == null) {
+					Log.d(LOG_TAG, "protocol bye");
+					break;
+				}
+				if (header.type == FrameWriter.COMPRESSED) {
+					inflateFile(header.path, header.length);
+				} else if (header.type == FrameWriter.DELTA) {
+					deltaFile(header.path, header.length, header.base);
+				} else {
+					writeFile(header.path, header.length, header.offset);
+				}
+				if (header.length >= 0) {
+					reporter.completed(header.length);
+				}
+			} while (true);
+			success = true;
+			reporter.report(null, 0, 0);
+			Log.d(LOG_TAG, "DirectoryWriter finished normally");
+		} catch (EOFException e) {
+			Log.e(LOG_TAG, "DirectoryWriter early EOF", e);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "DirectoryWriter", e);
+		} catch (InterruptedException e) {
+			Log.e(LOG_TAG, "DirectoryWriter Interrupted", e);
+		}
+	}
+}
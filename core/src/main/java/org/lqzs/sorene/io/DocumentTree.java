@@ -0,0 +1,155 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the destination tree, keyed by the path relative to the root.
+ * <p>
+ * A directory is listed with a single query the first time something inside it is looked up,
+ * directories and files created through the index are added to it right away. Looking up or
+ * creating an entry therefore costs no queries after the first one per directory.
+ */
+public class DocumentTree {
+	private final Storage storage;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final Set<String> listed = new HashSet<>();
+
+	public DocumentTree(Storage storage, Storage.Node root) {
+		this.storage = storage;
+		entries.put("", new Entry(root, true, 0, 0));
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * @return the entry at {@code path}, or null if there is none
+	 */
+	@Nullable
+	public Entry find(@NonNull String path) {
+		final int slash = path.lastIndexOf('/');
+		if (slash >= 0) {
+			final Entry parent = find(path.substring(0, slash));
+			if (parent == null || !parent.directory) {
+				return null;
+			}
+			list(path.substring(0, slash), parent);
+		} else if (path.length() > 0) {
+			list("", entries.get(""));
+		}
+		return entries.get(path);
+	}
+
+	/**
+	 * Looks up the directory at {@code path} and creates whatever is missing on the way.
+	 *
+	 * @return the directory, or null if it couldn't be created
+	 */
+	@Nullable
+	public Entry makeDirectories(@NonNull String path) {
+		Entry entry = find(path);
+		if (entry != null) {
+			return entry.directory ? entry : null;
+		}
+		final int slash = path.lastIndexOf('/');
+		final String parentPath = slash >= 0 ? path.substring(0, slash) : "";
+		final Entry parent = makeDirectories(parentPath);
+		if (parent == null) {
+			return null;
+		}
+		final Storage.Node node = storage.createDirectory(parent.node, path.substring(slash + 1));
+		if (node == null) {
+			return null;
+		}
+		entry = new Entry(node, true, 0, 0);
+		listed.add(path); // it is empty
+		entries.put(path, entry);
+		return entry;
+	}
+
+	/**
+	 * Creates a new file at {@code path}, replacing an existing one.
+	 *
+	 * @return the new file, or null if it couldn't be created
+	 */
+	@Nullable
+	public Entry createFile(@NonNull String path) {
+		final int slash = path.lastIndexOf('/');
+		final Entry parent = makeDirectories(slash >= 0 ? path.substring(0, slash) : "");
+		if (parent == null) {
+			return null;
+		}
+		final Entry existing = find(path);
+		if (existing != null && !existing.directory) {
+			delete(path);
+		}
+		final Storage.Node node = storage.createFile(parent.node, path.substring(slash + 1));
+		if (node == null) {
+			return null;
+		}
+		final Entry entry = new Entry(node, false, 0, 0);
+		entries.put(path, entry);
+		return entry;
+	}
+
+	public boolean delete(@NonNull String path) {
+		final Entry entry = entries.remove(path);
+		if (entry == null) {
+			return false;
+		}
+		return storage.delete(entry.node);
+	}
+
+	/**
+	 * Gives the entry at {@code path} the name {@code name} in the same directory.
+	 */
+	public boolean rename(@NonNull String path, @NonNull String name) {
+		final Entry entry = entries.get(path);
+		if (entry == null) {
+			return false;
+		}
+		final Storage.Node node = storage.rename(entry.node, name);
+		if (node == null) {
+			return false;
+		}
+		entries.remove(path);
+		final int slash = path.lastIndexOf('/');
+		entries.put(slash >= 0 ? path.substring(0, slash + 1) + name : name,
+				new Entry(node, entry.directory, entry.length, entry.lastModified));
+		return true;
+	}
+
+	private void list(String path, Entry dir) {
+		if (!listed.add(path)) {
+			return;
+		}
+		final String prefix = path.length() > 0 ? path + "/" : "";
+		for (Storage.Child child : storage.list(dir.node)) {
+			entries.put(prefix + child.name, new Entry(child.node, child.directory, child.length, child.lastModified));
+		}
+	}
+
+	public static class Entry {
+		public final Storage.Node node;
+		public final boolean directory;
+		/**
+		 * Size and modification time as listed, 0 if unknown or created by this index.
+		 */
+		public final long length;
+		public final long lastModified;
+
+		Entry(Storage.Node node, boolean directory, long length, long lastModified) {
+			this.node = node;
+			this.directory = directory;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+}
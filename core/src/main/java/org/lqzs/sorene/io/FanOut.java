@@ -0,0 +1,188 @@
+package org.lqzs.sorene.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Hands the frames of one {@link DirectoryReader} to several receivers, so a selection that goes
+ * to several devices is read only once.
+ * <p>
+ * Every branch gets its own view of each buffer in its own {@link Channel}, its stripes
+ * seal and send it like any other frame. The buffer goes back to the pool when the last branch
+ * has sent it, the stripes give their views to {@link Branch#getPool()} for that. A branch that
+ * leaves gives back the views it hasn't sent.
+ * <p>
+ * A full branch holds up the whole session until {@link #MaxStall} has passed, then it is
+ * dropped: its connections are torn down and the sender resumes it on its own.
+ */
+public class FanOut extends Thread {
+	private final static long MaxStall = TimeUnit.SECONDS.toNanos(10);
+	private final Channel source;
+	private final BufferPool bufferPool;
+	private final List<Branch> branches = new ArrayList<>();
+	private volatile boolean success = false;
+
+	public FanOut(Channel source, BufferPool bufferPool) {
+		this.source = source;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Adds a receiver before the fan-out is started.
+	 *
+	 * @param onDrop tears down the connections of the receiver when it falls behind
+	 */
+	public Branch addBranch(int capacity, Runnable onDrop) {
+		final Branch branch = new Branch(new Channel(capacity), onDrop);
+		branches.add(branch);
+		return branch;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	@Override
+	public void run() {
+		try {
+			ByteBuffer buf;
+			while ((buf = source.read()) != null) {
+				final Shared buffer = new Shared(buf, branches.size());
+				boolean live = false;
+				for (Branch branch : branches) {
+					final ByteBuffer view = buf.duplicate();
+					branch.views.put(view, buffer);
+					if (branch.dropped || !branch.channel.offer(view, MaxStall)) {
+						drop(branch);
+						branch.release(view);
+					} else {
+						live = true;
+					}
+				}
+				if (!live) {
+					Log.w(LOG_TAG, "FanOut: no receiver left");
+					return;
+				}
+			}
+			for (Branch branch : branches) {
+				if (!branch.dropped) {
+					branch.channel.close();
+				}
+			}
+			success = true;
+		} catch (InterruptedException e) {
+			Log.d(LOG_TAG, "FanOut interrupted");
+		} finally {
+			if (!success) {
+				dropAll();
+			}
+		}
+	}
+
+	/**
+	 * Drops every branch that is left, when the reader failed and the receivers have to get the
+	 * rest on their own.
+	 */
+	public void dropAll() {
+		for (Branch branch : branches) {
+			drop(branch);
+		}
+	}
+
+	private static void drop(Branch branch) {
+		synchronized (branch) {
+			if (branch.dropped) {
+				return;
+			}
+			branch.dropped = true;
+		}
+		Log.w(LOG_TAG, "FanOut: dropping a receiver");
+		branch.onDrop.run();
+	}
+
+	/**
+	 * One receiver of the fan-out.
+	 */
+	public class Branch {
+		public final Channel channel;
+		private final Runnable onDrop;
+		/**
+		 * The views this branch hasn't given back yet.
+		 */
+		private final Map<ByteBuffer, Shared> views = Collections.synchronizedMap(new IdentityHashMap<>());
+		private final BufferPool pool;
+		private volatile boolean dropped = false;
+		private boolean left = false;
+
+		Branch(Channel channel, Runnable onDrop) {
+			this.channel = channel;
+			this.onDrop = onDrop;
+			this.pool = new BufferPool(bufferPool.getBufferSize(), false, 0) {
+				@Override
+				public void push(ByteBuffer buf) {
+					release(buf);
+				}
+			};
+		}
+
+		/**
+		 * The pool the stripes of this branch give their buffers back to.
+		 */
+		public BufferPool getPool() {
+			return pool;
+		}
+
+		/**
+		 * Stops the fan-out from feeding a receiver whose connections broke, and gives back the
+		 * views it hasn't sent. Its connections must be closed by then: a stripe that is still
+		 * sealing a view must not get anything it reads out to the receiver.
+		 */
+		public void leave() {
+			synchronized (this) {
+				if (left) {
+					return;
+				}
+				left = true;
+				dropped = true;
+			}
+			// wakes the fan-out if it waits for room in this branch
+			channel.cancel();
+			final List<ByteBuffer> unsent;
+			synchronized (views) {
+				unsent = new ArrayList<>(views.keySet());
+			}
+			for (ByteBuffer view : unsent) {
+				release(view);
+			}
+		}
+
+		public boolean isDropped() {
+			return dropped;
+		}
+
+		private void release(ByteBuffer view) {
+			final Shared buffer = views.remove(view);
+			if (buffer != null && buffer.references.decrementAndGet() == 0) {
+				bufferPool.push(buffer.buffer);
+			}
+		}
+	}
+
+	private static class Shared {
+		final ByteBuffer buffer;
+		final AtomicInteger references;
+
+		Shared(ByteBuffer buffer, int references) {
+			this.buffer = buffer;
+			this.references = new AtomicInteger(references);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * A directory of the file system. The space of large files isn't reserved, Java has no call
+ * for it.
+ */
+public class FileStorage implements Storage {
+	private final PathNode root;
+
+	public FileStorage(Path root) {
+		this.root = new PathNode(root);
+	}
+
+	private static class PathNode implements Node {
+		final Path path;
+
+		PathNode(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		public String toString() {
+			return path.toString();
+		}
+	}
+
+	private static Path pathOf(Node node) {
+		return ((PathNode) node).path;
+	}
+
+	@Override
+	public Node getRoot() {
+		return root;
+	}
+
+	@Override
+	public List<Child> list(Node directory) {
+		final List<Child> result = new ArrayList<>();
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(pathOf(directory))) {
+			for (Path child : children) {
+				final BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(child, BasicFileAttributes.class);
+				} catch (IOException e) {
+					continue; // a dangling link, or gone since it was listed
+				}
+				result.add(new Child(child.getFileName().toString(), new PathNode(child), attributes.isDirectory(),
+						attributes.isDirectory() ? 0 : attributes.size(), attributes.lastModifiedTime().toMillis()));
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.e(LOG_TAG, "FileStorage: can't list " + directory, e);
+		}
+		return result;
+	}
+
+	@Override
+	public long lengthOf(Node file) {
+		try {
+			return Files.size(pathOf(file));
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public InputStream openInputStream(Node file) throws IOException {
+		return Files.newInputStream(pathOf(file));
+	}
+
+	@Nullable
+	@Override
+	public FileChannel openChannel(Node file) throws IOException {
+		if (!Files.isRegularFile(pathOf(file))) {
+			return null;
+		}
+		return FileChannel.open(pathOf(file), StandardOpenOption.READ);
+	}
+
+	@Nullable
+	@Override
+	public Node createDirectory(Node parent, String name) {
+		try {
+			return new PathNode(Files.createDirectory(pathOf(parent).resolve(name)));
+		} catch (IOException | RuntimeException e) {
+			Log.e(LOG_TAG, "FileStorage: can't create " + name, e);
+			return null;
+		}
+	}
+
+	@Nullable
+	@Override
+	public Node createFile(Node parent, String name) {
+		final Path path = pathOf(parent).resolve(name);
+		try {
+			Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING).close();
+			return new PathNode(path);
+		} catch (IOException | RuntimeException e) {
+			Log.e(LOG_TAG, "FileStorage: can't create " + name, e);
+			return null;
+		}
+	}
+
+	@Override
+	public boolean delete(Node node) {
+		try {
+			return Files.deleteIfExists(pathOf(node));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Nullable
+	@Override
+	public Node rename(Node node, String name) {
+		try {
+			return new PathNode(Files.move(pathOf(node), pathOf(node).resolveSibling(name)));
+		} catch (IOException | RuntimeException e) {
+			Log.e(LOG_TAG, "FileStorage: can't rename " + node, e);
+			return null;
+		}
+	}
+
+	@Override
+	public OutputStream openOutputStream(Node file, long offset) throws IOException {
+		return Channels.newOutputStream(openChannel(file, offset, offset));
+	}
+
+	@Override
+	public FileChannel openChannel(Node file, long offset, long length) throws IOException {
+		final FileChannel channel = FileChannel.open(pathOf(file), StandardOpenOption.WRITE);
+		try {
+			channel.truncate(offset);
+			channel.position(offset);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	@Nullable
+	@Override
+	public String getMimeType(String name) {
+		final int dot = name.lastIndexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+		String mime = null;
+		try {
+			mime = Files.probeContentType(root.path.resolve(name.toLowerCase(Locale.ROOT)));
+		} catch (IOException | RuntimeException ignored) {
+		}
+		return mime != null ? mime : URLConnection.guessContentTypeFromName(name.toLowerCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,203 @@
+package org.lqzs.sorene.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads back what a {@link FrameWriter} packed: entry headers and the data that follows them,
+ * from channel buffers of whatever size the sender chose.
+ */
+public class FrameReader {
+	private final static int MaxPathLength = 65535;
+	private final Channel in;
+	private final BufferPool bufferPool;
+	/**
+	 * The buffer being read, null before the first one.
+	 */
+	ByteBuffer current;
+	/**
+	 * Buffers taken from the channel ahead of {@link #current} by {@link #poll()}.
+	 */
+	private final ArrayDeque<ByteBuffer> ahead = new ArrayDeque<>();
+	private final ByteBuffer[] polled;
+
+	/**
+	 * @param pollBuffers most buffers taken from the channel at once by {@link #poll()}
+	 */
+	public FrameReader(Channel in, BufferPool bufferPool, int pollBuffers) {
+		this.in = in;
+		this.bufferPool = bufferPool;
+		this.polled = new ByteBuffer[pollBuffers];
+	}
+
+	/**
+	 * An entry as announced by {@link FrameWriter#writeHeader(byte[], long)} and the lengths
+	 * that follow the path for some kinds of entries.
+	 */
+	public static class Header {
+		public final String path;
+		/**
+		 * The length on the wire: the size of a plain file, or {@link FrameWriter#DIRECTORY},
+		 * {@link FrameWriter#RESUME}, {@link FrameWriter#DELTA} or {@link FrameWriter#COMPRESSED}.
+		 */
+		public final long type;
+		/**
+		 * The full size of a file, or {@link FrameWriter#DIRECTORY}.
+		 */
+		public final long length;
+		/**
+		 * Where the data of a resumed file starts, 0 otherwise.
+		 */
+		public final long offset;
+		/**
+		 * Size of the receiver's old copy of a delta, 0 otherwise.
+		 */
+		public final long base;
+
+		Header(String path, long type, long length, long offset, long base) {
+			this.path = path;
+			this.type = type;
+			this.length = length;
+			this.offset = offset;
+			this.base = base;
+		}
+	}
+
+	/**
+	 * @return the next entry, or null at the end of the stream
+	 */
+	public Header readHeader() throws IOException, InterruptedException {
+		readAtLeast(FrameWriter.HEADER_SIZE);
+		current.order(ByteOrder.BIG_ENDIAN);
+		final int nameLen = current.getInt();
+		final long type = current.getLong();
+		if (nameLen == 0 && type == 0) {
+			return null;
+		}
+		if (nameLen < 0 || nameLen > MaxPathLength || type < FrameWriter.COMPRESSED) {
+			throw new IOException("invalid header, nameLen=" + nameLen + " fileLen=" + type);
+		}
+		readAtLeast(nameLen);
+		final String path = new String(current.array(), current.arrayOffset() + current.position(), nameLen,
+				StandardCharsets.UTF_8);
+		current.position(current.position() + nameLen);
+		if (type == FrameWriter.COMPRESSED) {
+			final long length = readLong();
+			if (length < 0) {
+				throw new IOException("invalid compressed entry, fileLen=" + length);
+			}
+			return new Header(path, type, length, 0, 0);
+		}
+		if (type == FrameWriter.DELTA) {
+			final long length = readLong();
+			final long base = readLong();
+			if (length < 0 || base < 1) {
+				throw new IOException("invalid delta, fileLen=" + length + " base=" + base);
+			}
+			return new Header(path, type, length, 0, base);
+		}
+		if (type == FrameWriter.RESUME) {
+			final long offset = readLong();
+			final long length = readLong();
+			if (offset < 1 || length < offset) {
+				throw new IOException("invalid resume, offset=" + offset + " fileLen=" + length);
+			}
+			return new Header(path, type, length, offset, 0);
+		}
+		return new Header(path, type, type, 0, 0);
+	}
+
+	public int readInt() throws InterruptedException, EOFException {
+		readAtLeast(Integer.BYTES);
+		return current.order(ByteOrder.BIG_ENDIAN).getInt();
+	}
+
+	public long readLong() throws InterruptedException, EOFException {
+		readAtLeast(Long.BYTES);
+		return current.order(ByteOrder.BIG_ENDIAN).getLong();
+	}
+
+	/**
+	 * @return {@link #current} with data left in it, after giving back a buffer that has been
+	 * read completely
+	 */
+	ByteBuffer data() throws InterruptedException, EOFException {
+		if (current == null || current.remaining() < 1) {
+			if (current != null) {
+				bufferPool.push(current);
+			}
+			current = next();
+			if (current == null) {
+				throw new EOFException("early EOF");
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * @return the next buffer, waiting for it
+	 */
+	ByteBuffer next() throws InterruptedException {
+		final ByteBuffer buf = ahead.poll();
+		return buf != null ? buf : in.read();
+	}
+
+	/**
+	 * @return the next buffer if there is one already, or null
+	 */
+	ByteBuffer poll() {
+		if (ahead.isEmpty()) {
+			final int n = in.poll(polled);
+			for (int i = 0; i < n; i++) {
+				ahead.add(polled[i]);
+				polled[i] = null;
+			}
+		}
+		return ahead.poll();
+	}
+
+	/**
+	 * Makes sure that {@link #current} holds at least {@code size} bytes, merging it with the
+	 * following buffers if they are split.
+	 */
+	private void readAtLeast(int size) throws InterruptedException, EOFException {
+		if (current == null || !current.hasRemaining()) {
+			// a header that starts a new buffer is read in place instead of being copied out
+			if (current != null) {
+				bufferPool.push(current);
+			}
+			current = next();
+			if (current == null) {
+				throw new EOFException("early EOF in readAtLeast");
+			}
+		}
+		if (current.remaining() >= size) {
+			return;
+		}
+
+		int sum = current.remaining();
+		List<ByteBuffer> list = new ArrayList<>();
+		list.add(current);
+		do {
+			ByteBuffer next = next();
+			if (next == null) {
+				throw new EOFException("early EOF in readAtLeast");
+			}
+			list.add(next);
+			sum += next.remaining();
+		} while (sum < size);
+
+		current = bufferPool.pop(sum);
+		for (ByteBuffer b : list) {
+			current.put(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			bufferPool.push(b);
+		}
+		current.flip();
+	}
+}
@@ -0,0 +1,195 @@
+package org.lqzs.sorene.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Packs entry headers and file data back to back into pooled buffers and passes a buffer to the
+ * channel only once it is full, so that small files don't cost a whole buffer each.
+ */
+public class FrameWriter {
+	public static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+	/**
+	 * Entry length of a directory.
+	 */
+	public static final long DIRECTORY = -1;
+	/**
+	 * Entry length of the rest of a partial file, the offset and the full length follow the path.
+	 */
+	public static final long RESUME = -2;
+	/**
+	 * Entry length of a file sent as a {@link Delta} against the receiver's copy, the full length
+	 * and the length of the old copy follow the path.
+	 */
+	public static final long DELTA = -3;
+	/**
+	 * Entry length of a file sent through {@link Compressor}, the full length follows the path.
+	 */
+	public static final long COMPRESSED = -4;
+	private static final int MinChunk = 256;
+	private final Channel out;
+	private final BufferPool bufferPool;
+	private ByteBuffer current;
+	private volatile int chunkSize;
+
+	/**
+	 * @param chunkSize size of the first buffer, see {@link #setChunkSize(int)}
+	 */
+	public FrameWriter(Channel out, BufferPool bufferPool, int chunkSize) {
+		this.out = out;
+		this.bufferPool = bufferPool;
+		this.chunkSize = Math.min(chunkSize, bufferPool.getBufferSize());
+		this.current = bufferPool.pop(this.chunkSize);
+		current.limit(this.chunkSize);
+	}
+
+	/**
+	 * Sets the size of the buffers from the next one on, the receiver takes frames of any size
+	 * up to the largest buffer of the pool.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.min(chunkSize, bufferPool.getBufferSize());
+	}
+
+	public void writeHeader(byte[] path, long length) throws InterruptedException {
+		if (current.remaining() < HEADER_SIZE + path.length) {
+			flush();
+		}
+		current.order(ByteOrder.BIG_ENDIAN)
+				.putInt(path.length)
+				.putLong(length)
+				.put(path);
+	}
+
+	public void writeInt(int value) throws InterruptedException {
+		if (current.remaining() < Integer.BYTES) {
+			flush();
+		}
+		current.order(ByteOrder.BIG_ENDIAN).putInt(value);
+	}
+
+	public void writeLong(long value) throws InterruptedException {
+		if (current.remaining() < Long.BYTES) {
+			flush();
+		}
+		current.order(ByteOrder.BIG_ENDIAN).putLong(value);
+	}
+
+	/**
+	 * Copies the content of {@code src} and returns it to the pool.
+	 */
+	public void write(ByteBuffer src) throws InterruptedException {
+		while (src.hasRemaining()) {
+			if (!current.hasRemaining()) {
+				flush();
+			}
+			final int len = Math.min(src.remaining(), current.remaining());
+			current.put(src.array(), src.arrayOffset() + src.position(), len);
+			src.position(src.position() + len);
+		}
+		bufferPool.push(src);
+	}
+
+	/**
+	 * Copies as much of {@code src} as fits into the current buffer, a buffer that isn't
+	 * pooled like a mapped file.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public int put(ByteBuffer src) throws InterruptedException {
+		if (!current.hasRemaining()) {
+			flush();
+		}
+		final int n = Math.min(src.remaining(), current.remaining());
+		final ByteBuffer slice = src.duplicate();
+		slice.limit(slice.position() + n);
+		current.put(slice);
+		src.position(src.position() + n);
+		return n;
+	}
+
+	/**
+	 * Copies {@code len} bytes of {@code b}.
+	 */
+	public void write(byte[] b, int off, int len) throws InterruptedException {
+		while (len > 0) {
+			if (!current.hasRemaining()) {
+				flush();
+			}
+			final int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Compresses into the free space of the current buffer as one chunk, prefixed with its
+	 * length.
+	 *
+	 * @return the length of the chunk, 0 if the deflater has nothing to write
+	 */
+	public int deflate(Deflater deflater) throws InterruptedException {
+		if (current.remaining() < Integer.BYTES + MinChunk) {
+			flush();
+		}
+		final int lengthAt = current.position();
+		final int start = lengthAt + Integer.BYTES;
+		final int n = deflater.deflate(current.array(), current.arrayOffset() + start, current.limit() - start,
+				Deflater.NO_FLUSH);
+		if (n > 0) {
+			current.order(ByteOrder.BIG_ENDIAN).putInt(lengthAt, n);
+			current.position(start + n);
+		}
+		return n;
+	}
+
+	/**
+	 * Reads once from {@code in} into the free space of the current buffer.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 */
+	public int read(InputStream in) throws IOException, InterruptedException {
+		if (!current.hasRemaining()) {
+			flush();
+		}
+		final int read = in.read(current.array(), current.arrayOffset() + current.position(), current.remaining());
+		if (read > 0) {
+			current.position(current.position() + read);
+		}
+		return read;
+	}
+
+	/**
+	 * Reads once from {@code channel} at {@code position} into the free space of the current
+	 * buffer.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the file
+	 */
+	public int read(FileChannel channel, long position) throws IOException, InterruptedException {
+		if (!current.hasRemaining()) {
+			flush();
+		}
+		return channel.read(current, position);
+	}
+
+	public void flush() throws InterruptedException {
+		if (current.position() == 0) {
+			return;
+		}
+		current.flip();
+		out.write(current);
+		current = bufferPool.pop(chunkSize);
+		current.limit(chunkSize);
+	}
+
+	public void close() throws InterruptedException {
+		flush();
+		bufferPool.push(current);
+		out.close();
+	}
+}
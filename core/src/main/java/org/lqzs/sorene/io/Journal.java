@@ -0,0 +1,94 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checkpoints of a transfer: the files that were written completely, and how much of the file
+ * being written when the session broke made it to storage.
+ * <p>
+ * The {@link DirectoryWriter} keeps it up to date, and on reconnect the receiver hands a copy to
+ * the sender so that the {@link DirectoryReader} can skip what is done and seek into the partial
+ * file. Between sessions it is kept in a {@link JournalFile}.
+ */
+public class Journal {
+	private final static int MaxFiles = 1 << 24;
+	private final Set<String> completed = new HashSet<>();
+	private String partial = null;
+	private long offset = 0;
+
+	public synchronized boolean isCompleted(@NonNull String path) {
+		return completed.contains(path);
+	}
+
+	/**
+	 * @return how many bytes of {@code path} the receiver already has
+	 */
+	public synchronized long getOffset(@NonNull String path) {
+		return path.equals(partial) ? offset : 0;
+	}
+
+	synchronized void begin(String path, long offset) {
+		this.partial = path;
+		this.offset = offset;
+	}
+
+	synchronized void written(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * Drops what the journal says about {@code path}, when the file isn't there any more.
+	 */
+	synchronized void forget(String path) {
+		completed.remove(path);
+		if (path.equals(partial)) {
+			partial = null;
+			offset = 0;
+		}
+	}
+
+	synchronized void complete(String path) {
+		completed.add(path);
+		if (path.equals(partial)) {
+			partial = null;
+			offset = 0;
+		}
+	}
+
+	public synchronized void write(DataOutput out) throws IOException {
+		out.writeInt(completed.size());
+		for (String path : completed) {
+			out.writeUTF(path);
+		}
+		out.writeBoolean(partial != null);
+		if (partial != null) {
+			out.writeUTF(partial);
+			out.writeLong(offset);
+		}
+	}
+
+	public static Journal read(DataInput in) throws IOException {
+		final Journal journal = new Journal();
+		final int count = in.readInt();
+		if (count < 0 || count > MaxFiles) {
+			throw new IOException("Invalid journal size " + count);
+		}
+		for (int i = 0; i < count; i++) {
+			journal.completed.add(in.readUTF());
+		}
+		if (in.readBoolean()) {
+			journal.partial = in.readUTF();
+			journal.offset = in.readLong();
+			if (journal.offset < 0) {
+				throw new IOException("Invalid journal offset " + journal.offset);
+			}
+		}
+		return journal;
+	}
+}
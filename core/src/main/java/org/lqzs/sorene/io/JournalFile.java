@@ -0,0 +1,97 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Keeps the {@link Journal} of a session in a hidden file of the destination, so that a
+ * transfer goes on where it stopped even when the sender comes back too late to resume the
+ * session, or the receiver was restarted in between.
+ * <p>
+ * The file is named after the {@link Manifest#fingerprint() fingerprint} of the manifest, the
+ * same selection sent again finds it. It is deleted once the transfer is complete.
+ */
+public class JournalFile {
+	private final static String Prefix = ".sorene-";
+	private final static String Suffix = ".journal";
+	private final Storage storage;
+	private final Storage.Node folder;
+	private final String name;
+	@Nullable
+	private Storage.Node node;
+	private boolean deleted = false;
+
+	/**
+	 * Looks for the journal of {@code manifest} in the root of {@code tree}, before anything is
+	 * written to it.
+	 */
+	public JournalFile(DocumentTree tree, Manifest manifest) throws IOException {
+		this.storage = tree.getStorage();
+		this.name = Prefix + manifest.fingerprint() + Suffix;
+		final DocumentTree.Entry root = tree.find("");
+		if (root == null) {
+			throw new IOException("no destination");
+		}
+		this.folder = root.node;
+		final DocumentTree.Entry existing = tree.find(name);
+		this.node = existing != null && !existing.directory ? existing.node : null;
+	}
+
+	/**
+	 * @return the journal of an earlier session, or null if there is none or it can't be read
+	 */
+	@Nullable
+	public synchronized Journal load() {
+		if (node == null) {
+			return null;
+		}
+		try (InputStream in = storage.openInputStream(node)) {
+			return Journal.read(new DataInputStream(new BufferedInputStream(in)));
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "can't read " + name + ", starting over", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the saved journal with {@code journal}. A journal that can't be saved only costs
+	 * a resume, the transfer goes on. Once the file is deleted nothing is saved any more.
+	 */
+	public synchronized void save(Journal journal) {
+		if (deleted) {
+			return;
+		}
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try {
+			journal.write(new DataOutputStream(data));
+			if (node == null) {
+				node = storage.createFile(folder, name);
+				if (node == null) {
+					throw new IOException("can't create " + name);
+				}
+			}
+			try (OutputStream out = storage.openOutputStream(node, 0)) {
+				data.writeTo(out);
+			}
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "can't save " + name, e);
+		}
+	}
+
+	public synchronized void delete() {
+		deleted = true;
+		if (node != null) {
+			storage.delete(node);
+			node = null;
+		}
+	}
+}
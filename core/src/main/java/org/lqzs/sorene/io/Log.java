@@ -0,0 +1,84 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.Nullable;
+
+import java.io.PrintStream;
+
+/**
+ * Where the transfer core logs to, with the methods and priorities of {@code android.util.Log}.
+ * The app hands the lines to the Android log, anywhere else they go to the standard error
+ * stream.
+ */
+public final class Log {
+	public final static String LOG_TAG = "Sorene";
+	public final static int DEBUG = 3;
+	public final static int INFO = 4;
+	public final static int WARN = 5;
+	public final static int ERROR = 6;
+	private static volatile Printer printer = new StreamPrinter(System.err, INFO);
+
+	private Log() {
+	}
+
+	public interface Printer {
+		void println(int priority, String tag, String msg, @Nullable Throwable tr);
+	}
+
+	/**
+	 * Prints the lines of at least some priority to a stream, with the stack traces.
+	 */
+	public static class StreamPrinter implements Printer {
+		private final PrintStream out;
+		private final int minPriority;
+
+		public StreamPrinter(PrintStream out, int minPriority) {
+			this.out = out;
+			this.minPriority = minPriority;
+		}
+
+		@Override
+		public void println(int priority, String tag, String msg, @Nullable Throwable tr) {
+			if (priority < minPriority) {
+				return;
+			}
+			synchronized (out) {
+				out.println("DIWE".charAt(Math.max(DEBUG, Math.min(priority, ERROR)) - DEBUG) + "/" + tag + ": " + msg);
+				if (tr != null) {
+					tr.printStackTrace(out);
+				}
+			}
+		}
+	}
+
+	public static void setPrinter(Printer printer) {
+		Log.printer = printer;
+	}
+
+	public static void d(String tag, String msg) {
+		printer.println(DEBUG, tag, msg, null);
+	}
+
+	public static void d(String tag, String msg, Throwable tr) {
+		printer.println(DEBUG, tag, msg, tr);
+	}
+
+	public static void i(String tag, String msg) {
+		printer.println(INFO, tag, msg, null);
+	}
+
+	public static void w(String tag, String msg) {
+		printer.println(WARN, tag, msg, null);
+	}
+
+	public static void w(String tag, String msg, Throwable tr) {
+		printer.println(WARN, tag, msg, tr);
+	}
+
+	public static void e(String tag, String msg) {
+		printer.println(ERROR, tag, msg, null);
+	}
+
+	public static void e(String tag, String msg, Throwable tr) {
+		printer.println(ERROR, tag, msg, tr);
+	}
+}
@@ -0,0 +1,446 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Everything a sender is going to send, in stream order: path, size and last-modified time of
+ * every directory and file.
+ * <p>
+ * The sender passes it to the receiver before the data stream, the receiver compares it with
+ * its tree and answers with the files it needs, and the {@link DirectoryReader} sends only those.
+ */
+public class Manifest {
+	private final static int MaxEntries = 1 << 24;
+	/**
+	 * Smallest file for which the receiver sends a {@link Delta.Signature} of its old copy.
+	 */
+	public final static long DeltaMinLength = 16 * 1024 * 1024;
+	private final static int ScanThreads = 4;
+	private final static int HistogramBuckets = 12;
+	private final List<Entry> entries = new ArrayList<>();
+	private boolean delta = false;
+	private int fileCount = 0;
+	private long totalBytes = 0;
+	private final int[] histogram = new int[HistogramBuckets];
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Asks the receiver for signatures of large files that changed, so that they can be sent as
+	 * a {@link Delta}.
+	 */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+
+	/**
+	 * Starts walking {@code files} in the root of {@code storage}, skipping hidden entries.
+	 * Every directory is listed with a single query, and subdirectories are walked in parallel
+	 * by a work-stealing pool, so the sender can connect while the walk runs.
+	 */
+	public static Future<Manifest> scan(Storage storage, String[] files) {
+		final ForkJoinPool pool = new ForkJoinPool(ScanThreads);
+		return pool.submit(() -> {
+			try {
+				final long start = System.nanoTime();
+				final Set<String> selected = new HashSet<>(Arrays.asList(files));
+				final Map<String, Storage.Child> roots = new HashMap<>();
+				for (Storage.Child child : storage.list(storage.getRoot())) {
+					if (selected.contains(child.name)) {
+						roots.put(child.name, child);
+					}
+				}
+				final List<Walk> walks = new ArrayList<>();
+				for (String file : files) {
+					final Storage.Child child = roots.get(file);
+					if (child != null) {
+						walks.add(new Walk(storage, child, ""));
+					}
+				}
+				final Manifest manifest = new Manifest();
+				for (Walk walk : ForkJoinTask.invokeAll(walks)) {
+					manifest.entries.addAll(walk.join());
+				}
+				manifest.count();
+				Log.d(LOG_TAG, "manifest: " + manifest.fileCount + " files, " + manifest.totalBytes
+						+ " bytes, scanned in " + (System.nanoTime() - start) / 1000000 + "ms, sizes "
+						+ manifest.describeHistogram());
+				return manifest;
+			} finally {
+				pool.shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Lists one entry and, for a directory, everything below it.
+	 */
+	@SuppressWarnings("serial")
+	private static class Walk extends RecursiveTask<List<Entry>> {
+		private final Storage storage;
+		private final Storage.Child document;
+		private final String basePath;
+
+		Walk(Storage storage, Storage.Child document, String basePath) {
+			this.storage = storage;
+			this.document = document;
+			this.basePath = basePath;
+		}
+
+		@Override
+		protected List<Entry> compute() {
+			final List<Entry> result = new ArrayList<>();
+			final String name = document.name;
+			if (name.startsWith(".")) {
+				return result; // ignore hidden
+			}
+			final String path = basePath.length() > 0 ? basePath + "/" + name : name;
+			if (!document.directory) {
+				result.add(new Entry(path, name, document.length, document.lastModified, document.node));
+				return result;
+			}
+			result.add(new Entry(path, name, FrameWriter.DIRECTORY, 0, document.node));
+			// subdirectories are forked, files are listed in place, all in listing order
+			final List<Object> parts = new ArrayList<>();
+			for (Storage.Child child : storage.list(document.node)) {
+				if (child.name.startsWith(".")) {
+					continue;
+				}
+				if (child.directory) {
+					parts.add(new Walk(storage, child, path).fork());
+				} else {
+					parts.add(new Entry(path + "/" + child.name, child.name, child.length, child.lastModified,
+							child.node));
+				}
+			}
+			for (Object part : parts) {
+				if (part instanceof Walk) {
+					result.addAll(((Walk) part).join());
+				} else {
+					result.add((Entry) part);
+				}
+			}
+			return result;
+		}
+	}
+
+	private void count() {
+		fileCount = 0;
+		totalBytes = 0;
+		Arrays.fill(histogram, 0);
+		for (Entry entry : entries) {
+			if (!entry.isDirectory()) {
+				fileCount++;
+				totalBytes += entry.length;
+				histogram[bucketOf(entry.length)]++;
+			}
+		}
+	}
+
+	/**
+	 * Files are counted by size in buckets of powers of 4 from 4KB up.
+	 */
+	private static int bucketOf(long length) {
+		int bucket = 0;
+		for (long limit = 4096; length >= limit && bucket < HistogramBuckets - 1; limit <<= 2) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return file counts by size: below 4KB, below 16KB, and so on up to 16GB and beyond
+	 */
+	public int[] getHistogram() {
+		return histogram.clone();
+	}
+
+	private String describeHistogram() {
+		final StringBuilder sb = new StringBuilder();
+		long limit = 4096;
+		for (int i = 0; i < HistogramBuckets; i++, limit <<= 2) {
+			if (histogram[i] > 0) {
+				sb.append(i < HistogramBuckets - 1 ? "<" + limit / 1024 + "K" : ">=" + (limit >> 2) / 1024 + "K")
+						.append(':').append(histogram[i]).append(' ');
+			}
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Bytes of the files that are still to be sent: those that are needed and that
+	 * {@code journal} hasn't seen completed.
+	 */
+	public long remainingBytes(@Nullable Journal journal) {
+		long bytes = 0;
+		for (Entry entry : entries) {
+			if (isRemaining(entry, journal)) {
+				bytes += entry.length;
+			}
+		}
+		return bytes;
+	}
+
+	public int remainingFiles(@Nullable Journal journal) {
+		int files = 0;
+		for (Entry entry : entries) {
+			if (isRemaining(entry, journal)) {
+				files++;
+			}
+		}
+		return files;
+	}
+
+	private static boolean isRemaining(Entry entry, @Nullable Journal journal) {
+		return !entry.isDirectory() && entry.needed && (journal == null || !journal.isCompleted(entry.path));
+	}
+
+	/**
+	 * Receiver side: looks up every file in {@code tree}. A file counts as present when it has
+	 * the same size and was written after the source was last modified, since the copy keeps
+	 * the time it was written rather than the time of the source. Large files that are there
+	 * but changed get the signature of the old copy if the sender asked for deltas.
+	 * <p>
+	 * A {@code journal} that an earlier session left counts the files it completed as present
+	 * and keeps its partial file to be resumed, as long as the tree still has them.
+	 */
+	public void compare(@NonNull DocumentTree tree, @Nullable Journal journal) {
+		int present = 0, signed = 0;
+		for (Entry entry : entries) {
+			if (entry.isDirectory()) {
+				continue;
+			}
+			final DocumentTree.Entry existing = tree.find(entry.path);
+			if (journal != null && journal.isCompleted(entry.path)) {
+				if (existing != null && !existing.directory && existing.length == entry.length) {
+					entry.needed = false;
+					present++;
+					continue;
+				}
+				journal.forget(entry.path);
+			} else if (journal != null && journal.getOffset(entry.path) > 0) {
+				if (DirectoryWriter.canResume(tree, entry.path, entry.length, journal.getOffset(entry.path))) {
+					continue;
+				}
+				journal.forget(entry.path);
+			}
+			if (existing != null && !existing.directory && existing.length == entry.length
+					&& entry.lastModified > 0 && existing.lastModified >= entry.lastModified) {
+				entry.needed = false;
+				present++;
+			} else if (delta && existing != null && !existing.directory
+					&& existing.length >= DeltaMinLength && entry.length >= DeltaMinLength) {
+				try (InputStream in = tree.getStorage().openInputStream(existing.node)) {
+					entry.signature = Delta.Signature.compute(in, existing.length);
+					signed++;
+				} catch (IOException | RuntimeException e) {
+					Log.w(LOG_TAG, "manifest: no signature for " + entry.path, e);
+				}
+			}
+		}
+		Log.d(LOG_TAG, "manifest: " + present + " of " + entries.size() + " entries present, "
+				+ signed + " signatures");
+	}
+
+	/**
+	 * A name for the selection that doesn't depend on the session: the same files with the same
+	 * sizes and times give the same one.
+	 */
+	public String fingerprint() throws IOException {
+		final MessageDigest digest = Delta.newDigest();
+		final ByteBuffer numbers = ByteBuffer.allocate(2 * Long.BYTES);
+		for (Entry entry : entries) {
+			digest.update(entry.path.getBytes(StandardCharsets.UTF_8));
+			numbers.clear();
+			numbers.putLong(entry.length).putLong(entry.lastModified);
+			digest.update(numbers.array());
+		}
+		final StringBuilder hex = new StringBuilder();
+		for (byte b : Arrays.copyOf(digest.digest(), 8)) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Receiver side: the files that have to be sent, with the signatures for deltas.
+	 */
+	public void writeAnswer(DataOutput out) throws IOException {
+		final BitSet needed = new BitSet(entries.size());
+		int signatures = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			final Entry entry = entries.get(i);
+			if (entry.needed && !entry.isDirectory()) {
+				needed.set(i);
+			}
+			if (entry.signature != null) {
+				signatures++;
+			}
+		}
+		final byte[] bits = needed.toByteArray();
+		out.writeInt(bits.length);
+		out.write(bits);
+		out.writeInt(signatures);
+		for (int i = 0; i < entries.size(); i++) {
+			final Entry entry = entries.get(i);
+			if (entry.signature != null) {
+				out.writeInt(i);
+				entry.signature.write(out);
+			}
+		}
+	}
+
+	/**
+	 * Sender side: keeps only the files that the receiver asked for.
+	 */
+	public void readAnswer(DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0 || length > entries.size() / 8 + 1) {
+			throw new IOException("Invalid answer length " + length);
+		}
+		final byte[] bits = new byte[length];
+		in.readFully(bits);
+		final BitSet needed = BitSet.valueOf(bits);
+		for (int i = 0; i < entries.size(); i++) {
+			final Entry entry = entries.get(i);
+			entry.needed = entry.isDirectory() || needed.get(i);
+		}
+		final int signatures = in.readInt();
+		if (signatures < 0 || signatures > entries.size()) {
+			throw new IOException("Invalid signature count " + signatures);
+		}
+		for (int i = 0; i < signatures; i++) {
+			final int index = in.readInt();
+			if (index < 0 || index >= entries.size() || entries.get(index).isDirectory()) {
+				throw new IOException("Invalid signature index " + index);
+			}
+			entries.get(index).signature = Delta.Signature.read(in);
+		}
+	}
+
+	/**
+	 * Sender side: a manifest of the same files for one of several receivers, to be answered
+	 * on its own.
+	 */
+	public Manifest copy() {
+		final Manifest manifest = new Manifest();
+		manifest.delta = delta;
+		for (Entry entry : entries) {
+			manifest.entries.add(new Entry(entry.path, entry.name, entry.length, entry.lastModified, entry.node));
+		}
+		manifest.count();
+		return manifest;
+	}
+
+	/**
+	 * Sender side: the files that any of {@code answered} asked for, all copies of the same
+	 * manifest. Signatures are dropped, a delta only fits the receiver that sent it.
+	 */
+	public static Manifest union(List<Manifest> answered) {
+		final Manifest manifest = answered.get(0).copy();
+		for (int i = 0; i < manifest.entries.size(); i++) {
+			final Entry entry = manifest.entries.get(i);
+			entry.needed = false;
+			for (Manifest other : answered) {
+				entry.needed |= other.entries.get(i).needed;
+			}
+		}
+		return manifest;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeBoolean(delta);
+		out.writeInt(entries.size());
+		for (Entry entry : entries) {
+			out.writeUTF(entry.path);
+			out.writeLong(entry.length);
+			out.writeLong(entry.lastModified);
+		}
+	}
+
+	public static Manifest read(DataInput in) throws IOException {
+		final Manifest manifest = new Manifest();
+		manifest.delta = in.readBoolean();
+		final int count = in.readInt();
+		if (count < 0 || count > MaxEntries) {
+			throw new IOException("Invalid manifest size " + count);
+		}
+		for (int i = 0; i < count; i++) {
+			final String path = in.readUTF();
+			final long length = in.readLong();
+			final long lastModified = in.readLong();
+			if (length < FrameWriter.DIRECTORY) {
+				throw new IOException("Invalid manifest entry " + path + " length=" + length);
+			}
+			manifest.entries.add(new Entry(path, path.substring(path.lastIndexOf('/') + 1), length,
+					lastModified, null));
+		}
+		return manifest;
+	}
+
+	public static class Entry {
+		public final String path;
+		public final String name;
+		/**
+		 * Size of a file, or {@link FrameWriter#DIRECTORY}.
+		 */
+		public final long length;
+		public final long lastModified;
+		/**
+		 * The file on the sender side, null on the receiver.
+		 */
+		@Nullable
+		final Storage.Node node;
+		boolean needed = true;
+		/**
+		 * Signature of the receiver's old copy when the file is to be sent as a delta.
+		 */
+		@Nullable
+		Delta.Signature signature;
+
+		Entry(String path, String name, long length, long lastModified, @Nullable Storage.Node node) {
+			this.path = path;
+			this.name = name;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.node = node;
+		}
+
+		public boolean isDirectory() {
+			return length == FrameWriter.DIRECTORY;
+		}
+	}
+}
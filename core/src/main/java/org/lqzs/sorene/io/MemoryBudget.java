@@ -0,0 +1,76 @@
+package org.lqzs.sorene.io;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes in flight that several {@link Channel}s share, so that concurrent sessions stay within
+ * one limit together. A buffer larger than the whole budget is let through once nothing else
+ * is held.
+ */
+public class MemoryBudget {
+	private final long capacity;
+	private long used = 0;
+	private int waiters = 0;
+
+	public MemoryBudget(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * @param deadline {@link System#nanoTime()} to give up at, or 0 to wait as long as it takes
+	 * @return false if the deadline passed or {@code channel} was cancelled
+	 */
+	synchronized boolean acquire(long bytes, long deadline, Channel channel) throws InterruptedException {
+		waiters++;
+		try {
+			while (used > 0 && used + bytes > capacity) {
+				if (channel.isCancelled()) {
+					return false;
+				}
+				if (deadline == 0) {
+					wait();
+					continue;
+				}
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		} finally {
+			waiters--;
+		}
+		used += bytes;
+		return true;
+	}
+
+	synchronized boolean tryAcquire(long bytes) {
+		if (used > 0 && used + bytes > capacity) {
+			return false;
+		}
+		used += bytes;
+		return true;
+	}
+
+	synchronized void release(long bytes) {
+		used -= bytes;
+		wakeUp();
+	}
+
+	/**
+	 * Lets the waiters check again whether their channel was cancelled.
+	 */
+	synchronized void wakeUp() {
+		if (waiters > 0) {
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package org.lqzs.sorene.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Opens upcoming files and reads their first buffers on a small worker pool, so that the
+ * {@link DirectoryReader} doesn't wait for the storage while the socket is idle.
+ * <p>
+ * Read-ahead data is reserved in the output {@link Channel} while it waits. At most half of the
+ * channel can be reserved this way, the other half stays free for the file that is currently
+ * being streamed.
+ * <p>
+ * Files that the storage backs with a regular file are read through a {@link FileChannel} at
+ * explicit positions, so the reader can map large files; pipes and other files that can't seek
+ * are read as streams.
+ */
+public class Prefetcher {
+	private final Storage storage;
+	private final Channel channel;
+	private final BufferPool bufferPool;
+	private final ExecutorService executor;
+	private final int maxBuffers;
+	private volatile int bufferSize;
+	private final AtomicInteger reserved = new AtomicInteger();
+
+	public Prefetcher(Storage storage, Channel channel, BufferPool bufferPool, int threads, int maxBuffers) {
+		this.storage = storage;
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.maxBuffers = maxBuffers;
+		this.bufferSize = bufferPool.getBufferSize();
+	}
+
+	public Future<OpenFile> submit(final Storage.Node file) {
+		return submit(file, 0);
+	}
+
+	/**
+	 * Like {@link #submit(Storage.Node)}, but skips the first {@code offset} bytes that the receiver
+	 * already has. The file is read from the start if it is shorter than that.
+	 */
+	public Future<OpenFile> submit(final Storage.Node file, final long offset) {
+		return executor.submit(() -> open(file, offset));
+	}
+
+	/**
+	 * Sets the size of the read-ahead buffers of the files that are opened from now on.
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = Math.min(bufferSize, bufferPool.getBufferSize());
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private OpenFile open(Storage.Node document, long offset) throws IOException {
+		final long length = storage.lengthOf(document);
+		if (length < 0) {
+			return null;
+		}
+		final OpenFile file = new OpenFile(length, offset <= length ? offset : 0);
+		file.channel = openSeekable(document);
+		if (file.channel != null) {
+			file.position = file.offset;
+		} else {
+			file.in = storage.openInputStream(document);
+		}
+		try {
+			if (file.in != null) {
+				skip(file.in, file.offset);
+			}
+			while (file.buffers.size() < maxBuffers && !Thread.currentThread().isInterrupted()) {
+				final ByteBuffer buf = bufferPool.pop(bufferSize);
+				buf.limit(Math.min(buf.capacity(), bufferSize));
+				if (!reserve(buf.capacity())) {
+					bufferPool.push(buf);
+					break;
+				}
+				final boolean eof;
+				if (file.channel != null) {
+					eof = fill(file.channel, file.position, buf);
+					file.position += buf.limit();
+				} else {
+					eof = fill(file.in, buf);
+				}
+				unreserve(buf.capacity() - buf.limit());
+				if (buf.limit() < 1) {
+					bufferPool.push(buf);
+				} else {
+					file.buffers.add(buf);
+				}
+				if (eof) {
+					file.close();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			discard(file);
+			throw e;
+		}
+		return file;
+	}
+
+	/**
+	 * @return a channel of {@code document} if it is a regular file, or null if the storage
+	 * only hands out pipes or sockets
+	 */
+	private FileChannel openSeekable(Storage.Node document) {
+		try {
+			return storage.openChannel(document);
+		} catch (IOException | RuntimeException e) {
+			Log.w(LOG_TAG, "can't open a channel of " + document, e);
+			return null;
+		}
+	}
+
+	private boolean reserve(int bytes) {
+		// the channel can be resized while the files are read
+		if (reserved.addAndGet(bytes) > channel.getCapacity() / 2 || !channel.tryReserve(bytes)) {
+			reserved.addAndGet(-bytes);
+			return false;
+		}
+		return true;
+	}
+
+	private void unreserve(int bytes) {
+		reserved.addAndGet(-bytes);
+		channel.unreserve(bytes);
+	}
+
+	private static void skip(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			final long skipped = in.skip(n);
+			if (skipped > 0) {
+				n -= skipped;
+			} else if (in.read() >= 0) {
+				n--;
+			} else {
+				throw new EOFException("file is shorter than the resume offset");
+			}
+		}
+	}
+
+	/**
+	 * Fills {@code buf} from {@code in} and flips it.
+	 *
+	 * @return whether the end of the stream was reached
+	 */
+	static boolean fill(InputStream in, ByteBuffer buf) throws IOException {
+		boolean eof = false;
+		while (buf.remaining() > 0) {
+			int read = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if (read < 0) {
+				eof = true;
+				break;
+			}
+			buf.position(buf.position() + read);
+		}
+		buf.flip();
+		return eof;
+	}
+
+	/**
+	 * Fills {@code buf} from {@code channel} starting at {@code position} and flips it.
+	 *
+	 * @return whether the end of the file was reached
+	 */
+	static boolean fill(FileChannel channel, long position, ByteBuffer buf) throws IOException {
+		boolean eof = false;
+		while (buf.remaining() > 0) {
+			final int read = channel.read(buf, position);
+			if (read < 0) {
+				eof = true;
+				break;
+			}
+			position += read;
+		}
+		buf.flip();
+		return eof;
+	}
+
+	/**
+	 * Moves the next read-ahead buffer of {@code file} into {@code frames}. The reservation is
+	 * given back first, the frame buffer pays for the data again when it reaches the channel.
+	 *
+	 * @return the number of bytes written, or -1 if no read-ahead buffer is left
+	 */
+	public int writeNext(OpenFile file, FrameWriter frames) throws InterruptedException {
+		final ByteBuffer buf = file.buffers.poll();
+		if (buf == null) {
+			return -1;
+		}
+		final int length = buf.remaining();
+		unreserve(length);
+		frames.write(buf);
+		return length;
+	}
+
+	/**
+	 * @return a stream over the rest of {@code file}, read-ahead buffers first, for consumers
+	 * that need to look at the data themselves
+	 */
+	public InputStream stream(final OpenFile file) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				final byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buf;
+				while ((buf = file.buffers.peek()) != null && !buf.hasRemaining()) {
+					bufferPool.push(file.buffers.poll());
+				}
+				if (buf != null) {
+					final int n = Math.min(len, buf.remaining());
+					buf.get(b, off, n);
+					unreserve(n);
+					return n;
+				}
+				if (file.in == null && file.channel != null) {
+					file.channel.position(file.position);
+					file.in = Channels.newInputStream(file.channel);
+				}
+				return file.in != null ? file.in.read(b, off, len) : -1;
+			}
+		};
+	}
+
+	/**
+	 * Gives back everything held by a file that is not going to be sent.
+	 */
+	public void discard(OpenFile file) {
+		ByteBuffer buf;
+		while ((buf = file.buffers.poll()) != null) {
+			unreserve(buf.remaining());
+			bufferPool.push(buf);
+		}
+		file.close();
+	}
+
+	public static class OpenFile {
+		public final long length;
+		/**
+		 * Where the data starts, non-zero when a partial file is resumed.
+		 */
+		public final long offset;
+		final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+		/**
+		 * The open stream positioned after the read-ahead buffers, or null when the file has
+		 * been read completely or is read through {@link #channel}.
+		 */
+		InputStream in;
+		/**
+		 * The file of a storage that hands out regular files, or null.
+		 */
+		FileChannel channel;
+		/**
+		 * Where the read-ahead buffers end in {@link #channel}.
+		 */
+		long position;
+
+		OpenFile(long length, long offset) {
+			this.length = length;
+			this.offset = offset;
+		}
+
+		void close() {
+			try {
+				if (in != null) {
+					in.close();
+				}
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException ignored) {
+			}
+			in = null;
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package org.lqzs.sorene.io;
+
+public interface ProgressReporter {
+	void report(String text, long now, long max);
+
+	/**
+	 * Sets the bytes and the number of files that the transfer still has to move.
+	 */
+	void setTotal(long bytes, int files);
+
+	/**
+	 * A file of {@code length} bytes, as counted in the total, is done.
+	 */
+	void completed(long length);
+}
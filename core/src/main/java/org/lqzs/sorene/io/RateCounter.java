@@ -9,11 +9,18 @@ public class RateCounter {
 		last = 0;
 	}
 
-	public void increase(long delta) {
+	public synchronized void increase(long delta) {
 		value += delta;
 	}
 
-	public long rate() {
+	/**
+	 * @return everything counted so far, without starting a new period like {@link #rate()}
+	 */
+	public synchronized long total() {
+		return value;
+	}
+
+	public synchronized long rate() {
 		long now = value;
 		long rate = now - last;
 		last = now;
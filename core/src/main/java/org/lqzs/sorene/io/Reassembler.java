@@ -0,0 +1,65 @@
+package org.lqzs.sorene.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Puts the chunks arriving on several stripes back into sequence order before they reach the
+ * {@link DirectoryWriter}. At most {@code window} chunks are held out of order; stripes that run
+ * too far ahead wait until the gap is filled.
+ */
+public class Reassembler {
+	private final Channel out;
+	private final int window;
+	private final Map<Long, ByteBuffer> pending = new HashMap<>();
+	private long next = 0;
+	private long total = -1;
+	private int open;
+	private boolean failed = false;
+
+	public Reassembler(Channel out, int streams, int window) {
+		this.out = out;
+		this.open = streams;
+		this.window = window;
+	}
+
+	public synchronized void put(long seq, ByteBuffer packet) throws IOException, InterruptedException {
+		while (seq >= next + window && !failed) {
+			wait();
+		}
+		if (failed) {
+			throw new IOException("session failed");
+		}
+		if (seq < next || pending.containsKey(seq) || (total >= 0 && seq >= total)) {
+			throw new IOException("unexpected chunk " + seq);
+		}
+		pending.put(seq, packet);
+		ByteBuffer ready;
+		while ((ready = pending.remove(next)) != null) {
+			out.write(ready);
+			next++;
+		}
+		notifyAll();
+	}
+
+	public synchronized void finish(long total) throws IOException {
+		if (this.total >= 0 && this.total != total) {
+			throw new IOException("stripes disagree on chunk count");
+		}
+		this.total = total;
+		open--;
+		if (open == 0) {
+			if (next != total || !pending.isEmpty()) {
+				throw new IOException("missing chunks: got " + next + " of " + total);
+			}
+			out.close();
+		}
+	}
+
+	public synchronized void fail() {
+		failed = true;
+		notifyAll();
+	}
+}
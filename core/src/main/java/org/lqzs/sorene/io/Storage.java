@@ -0,0 +1,109 @@
+package org.lqzs.sorene.io;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * The tree that a sender reads from or a receiver writes to: a document tree of the Storage
+ * Access Framework in the app, a directory of the file system on a server.
+ * <p>
+ * Files and directories are handed around as {@link Node}s that only the storage that made
+ * them understands.
+ */
+public interface Storage {
+	/**
+	 * A file or directory of a storage.
+	 */
+	interface Node {
+	}
+
+	class Child {
+		public final String name;
+		public final Node node;
+		public final boolean directory;
+		/**
+		 * Size and modification time as listed, 0 if unknown.
+		 */
+		public final long length;
+		public final long lastModified;
+
+		public Child(String name, Node node, boolean directory, long length, long lastModified) {
+			this.name = name;
+			this.node = node;
+			this.directory = directory;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	Node getRoot();
+
+	/**
+	 * Lists a directory with a single query.
+	 *
+	 * @return the children, empty if the directory can't be listed
+	 */
+	List<Child> list(Node directory);
+
+	/**
+	 * @return the current size of {@code file}, or -1 if it is gone
+	 */
+	long lengthOf(Node file);
+
+	InputStream openInputStream(Node file) throws IOException;
+
+	/**
+	 * Opens {@code file} for reading at explicit positions.
+	 *
+	 * @return the channel, or null if the file is a pipe or anything else that can't seek
+	 */
+	@Nullable
+	FileChannel openChannel(Node file) throws IOException;
+
+	/**
+	 * @return the new directory, or null if it couldn't be created
+	 */
+	@Nullable
+	Node createDirectory(Node parent, String name);
+
+	/**
+	 * @return the new empty file, or null if it couldn't be created
+	 */
+	@Nullable
+	Node createFile(Node parent, String name);
+
+	boolean delete(Node node);
+
+	/**
+	 * Gives {@code node} the name {@code name} in the same directory.
+	 *
+	 * @return the renamed node, or null if it couldn't be renamed
+	 */
+	@Nullable
+	Node rename(Node node, String name);
+
+	/**
+	 * Opens {@code file} for writing at {@code offset} and cuts off anything after it.
+	 */
+	OutputStream openOutputStream(Node file, long offset) throws IOException;
+
+	/**
+	 * Like {@link #openOutputStream(Node, long)}, and reserves the space up to {@code length}
+	 * where the file system supports it.
+	 *
+	 * @return the channel, or null if the file isn't a regular file
+	 */
+	@Nullable
+	FileChannel openChannel(Node file, long offset, long length) throws IOException;
+
+	/**
+	 * @return the type of a file by its name, or null if it isn't known
+	 */
+	@Nullable
+	String getMimeType(String name);
+}
@@ -0,0 +1,213 @@
+package org.lqzs.sorene.io;
+
+import org.lqzs.sorene.security.RecordCipher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Receives the frames written by one {@link StripeWriter} and passes them to the shared
+ * {@link Reassembler}.
+ * <p>
+ * Frame headers are opened right away. The payload records of a frame are read with one
+ * scattering read into direct buffers of {@code recordPool} and opened on the shared worker pool,
+ * up to {@code depth} frames at once, and go to the reassembler in the order they came.
+ */
+public class StripeReader extends Thread {
+	private final ScatteringByteChannel in;
+	private final RecordCipher cipher;
+	private final ExecutorService workers;
+	private final int depth;
+	private final Reassembler reassembler;
+	private final BufferPool bufferPool;
+	private final BufferPool recordPool;
+	private final RateCounter rate;
+	private final Runnable abort;
+	private final ArrayDeque<Future<Opened>> opening = new ArrayDeque<>();
+	private final ByteBuffer sealedHeader = ByteBuffer.allocateDirect(StripeWriter.SealedHeaderSize);
+	private final ByteBuffer header = ByteBuffer.allocate(StripeWriter.HEADER_SIZE);
+	/**
+	 * The record headers of one frame, each read into a slice of its own.
+	 */
+	private final ByteBuffer recordHeaders;
+	private final ByteBuffer[] scatter;
+	private long record = 0;
+	private boolean success = false;
+
+	/**
+	 * @param bufferPool where the chunks for the reassembler come from
+	 * @param recordPool direct buffers for the sealed records
+	 */
+	public StripeReader(ScatteringByteChannel in, RecordCipher cipher, ExecutorService workers, int depth,
+			Reassembler reassembler, BufferPool bufferPool, BufferPool recordPool, RateCounter rate,
+			Runnable abort) {
+		this.in = in;
+		this.cipher = cipher;
+		this.workers = workers;
+		this.depth = depth;
+		this.reassembler = reassembler;
+		this.bufferPool = bufferPool;
+		this.recordPool = recordPool;
+		this.rate = rate;
+		final int records = RecordCipher.recordsFor(bufferPool.getBufferSize());
+		this.recordHeaders = ByteBuffer.allocateDirect(records * RecordCipher.HEADER_LENGTH);
+		this.scatter = new ByteBuffer[2 * records];
+		this.abort = abort;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				sealedHeader.clear();
+				readFully(sealedHeader);
+				final int recordHeader = sealedHeader.getInt(0);
+				if (RecordCipher.lengthOf(recordHeader) != StripeWriter.HEADER_SIZE) {
+					throw new IOException("invalid frame header");
+				}
+				sealedHeader.flip().position(RecordCipher.HEADER_LENGTH);
+				header.clear();
+				cipher.open(record++, recordHeader, sealedHeader, header);
+				header.flip();
+				final long seq = header.getLong();
+				final int length = header.getInt();
+				if ((length == StripeWriter.END_OF_STREAM) != RecordCipher.isFinal(recordHeader)) {
+					throw new IOException("invalid end of stream");
+				}
+				if (length == StripeWriter.END_OF_STREAM) {
+					while (!opening.isEmpty()) {
+						putNext();
+					}
+					if (in.read(ByteBuffer.allocate(1)) != -1) {
+						throw new IOException("data after end of stream");
+					}
+					reassembler.finish(seq);
+					break;
+				}
+				// the sender picks the chunk size as it goes, up to the largest buffer
+				if (length < 1 || length > bufferPool.getBufferSize()) {
+					throw new IOException("invalid chunk length " + length);
+				}
+				final ByteBuffer packet = bufferPool.pop(length);
+				final ByteBuffer[] records = new ByteBuffer[RecordCipher.recordsFor(length)];
+				final int[] headers = new int[records.length];
+				recordHeaders.clear();
+				for (int i = 0; i < records.length; i++) {
+					final int recordLength = Math.min(RecordCipher.RECORD_SIZE, length - i * RecordCipher.RECORD_SIZE);
+					recordHeaders.limit((i + 1) * RecordCipher.HEADER_LENGTH);
+					scatter[2 * i] = recordHeaders.slice();
+					recordHeaders.position(recordHeaders.limit());
+					records[i] = recordPool.pop(RecordCipher.MAX_SEALED_LENGTH);
+					records[i].limit(recordLength + RecordCipher.TAG_LENGTH);
+					scatter[2 * i + 1] = records[i];
+				}
+				try {
+					readFully(2 * records.length);
+					for (int i = 0; i < records.length; i++) {
+						final int recordLength = Math.min(RecordCipher.RECORD_SIZE, length - i * RecordCipher.RECORD_SIZE);
+						headers[i] = recordHeaders.getInt(i * RecordCipher.HEADER_LENGTH);
+						if (headers[i] != RecordCipher.header(recordLength, false)) {
+							throw new IOException("invalid record length");
+						}
+						records[i].flip();
+						scatter[2 * i] = null;
+						scatter[2 * i + 1] = null;
+					}
+				} catch (IOException e) {
+					for (ByteBuffer buf : records) {
+						recordPool.push(buf);
+					}
+					bufferPool.push(packet);
+					throw e;
+				}
+				rate.increase(length);
+				final long index = record;
+				record += records.length;
+				opening.add(workers.submit(() -> open(index, headers, records, seq, packet, length)));
+				while (opening.size() > depth || (!opening.isEmpty() && opening.peek().isDone())) {
+					putNext();
+				}
+			}
+			success = true;
+			Log.d(LOG_TAG, getName() + " finished normally");
+		} catch (IOException e) {
+			Log.e(LOG_TAG, getName(), e);
+			reassembler.fail();
+			abort.run();
+		} catch (InterruptedException e) {
+			Log.d(LOG_TAG, getName() + " interrupted");
+			reassembler.fail();
+		} finally {
+			for (Future<Opened> future : opening) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Runs on a worker: opens {@code records} into {@code packet} and gives them back to the
+	 * pool.
+	 */
+	private Opened open(long index, int[] headers, ByteBuffer[] records, long seq, ByteBuffer packet, int length)
+			throws IOException {
+		final ByteBuffer slice = packet.duplicate();
+		for (int i = 0; i < records.length; i++) {
+			cipher.open(index + i, headers[i], records[i], slice);
+			recordPool.push(records[i]);
+		}
+		packet.limit(length);
+		return new Opened(seq, packet);
+	}
+
+	private void readFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (in.read(buf) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Fills the first {@code count} buffers of {@link #scatter}.
+	 */
+	private void readFully(int count) throws IOException {
+		while (scatter[count - 1].hasRemaining()) {
+			if (in.read(scatter, 0, count) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private void putNext() throws IOException, InterruptedException {
+		final Opened opened;
+		try {
+			opened = opening.remove().get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		}
+		reassembler.put(opened.seq, opened.packet);
+	}
+
+	private static class Opened {
+		final long seq;
+		final ByteBuffer packet;
+
+		Opened(long seq, ByteBuffer packet) {
+			this.seq = seq;
+			this.packet = packet;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package org.lqzs.sorene.io;
+
+import org.lqzs.sorene.security.RecordCipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Sends chunks of one transfer over one of several parallel connections.
+ * <p>
+ * Every stripe takes the buffers that are ready from the shared {@link Sequencer} as soon as it
+ * is free and frames each of them as [long seq][int length][payload]. When the channel is
+ * drained each stripe writes an end frame carrying the total chunk count, so the receiver can
+ * tell a finished stream from a truncated one. A stripe that fails runs {@code abort} so that
+ * the whole session is torn down instead of stalling on the missing chunk.
+ * <p>
+ * The frame header and the payload are sealed as records of their own. Up to {@code depth}
+ * frames are sealed on the shared worker pool at once, into direct buffers of
+ * {@code recordPool}, and the stripe writes the records of all frames that are ready with one
+ * gathering write.
+ */
+public class StripeWriter extends Thread {
+	public static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+	static final int END_OF_STREAM = -1;
+	private final static int MaxBatch = 4;
+	/**
+	 * Records written with one gathering write, well below IOV_MAX, unless a single frame has
+	 * more.
+	 */
+	private final static int MaxGather = 64;
+	final static int SealedHeaderSize = RecordCipher.HEADER_LENGTH + HEADER_SIZE + RecordCipher.TAG_LENGTH;
+	private final Sequencer sequencer;
+	private final GatheringByteChannel out;
+	private final RecordCipher cipher;
+	private final ExecutorService workers;
+	private final int depth;
+	private final BufferPool bufferPool;
+	private final BufferPool recordPool;
+	private final RateCounter rate;
+	private final Runnable abort;
+	private final ArrayDeque<Future<Sealed>> sealing = new ArrayDeque<>();
+	private final ByteBuffer[] gather;
+	/**
+	 * Most records of one frame.
+	 */
+	private final int frameRecords;
+	private long record = 0;
+	private boolean success = false;
+
+	/**
+	 * @param bufferPool where the chunks of the channel go back to
+	 * @param recordPool direct buffers for the sealed records
+	 */
+	public StripeWriter(Sequencer sequencer, GatheringByteChannel out, RecordCipher cipher,
+			ExecutorService workers, int depth, BufferPool bufferPool, BufferPool recordPool, RateCounter rate,
+			Runnable abort) {
+		this.sequencer = sequencer;
+		this.out = out;
+		this.cipher = cipher;
+		this.workers = workers;
+		this.depth = depth;
+		this.bufferPool = bufferPool;
+		this.recordPool = recordPool;
+		this.frameRecords = 1 + RecordCipher.recordsFor(bufferPool.getBufferSize());
+		this.gather = new ByteBuffer[Math.max(MaxGather, frameRecords)];
+		this.rate = rate;
+		this.abort = abort;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	@Override
+	public void run() {
+		final ByteBuffer[] batch = new ByteBuffer[MaxBatch];
+		try {
+			while (true) {
+				final int count;
+				final long first;
+				synchronized (sequencer) {
+					// only wait for the channel when there is nothing else to do
+					count = sealing.isEmpty() ? sequencer.in.drain(batch) : sequencer.in.poll(batch);
+					first = sequencer.next;
+					if (count > 0) {
+						sequencer.next += count;
+					}
+				}
+				if (count < 0) {
+					while (!sealing.isEmpty()) {
+						writeNext();
+					}
+					final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+					header.putLong(first).putInt(END_OF_STREAM).flip();
+					final ByteBuffer sealed = recordPool.pop(SealedHeaderSize);
+					cipher.seal(record++, header, true, sealed);
+					sealed.flip();
+					gather[0] = sealed;
+					writeFully(1);
+					recordPool.push(sealed);
+					break;
+				}
+				if (count == 0) {
+					writeNext();
+					continue;
+				}
+				for (int i = 0; i < count; i++) {
+					final ByteBuffer packet = batch[i];
+					batch[i] = null;
+					final long seq = first + i;
+					final long index = record;
+					record += 1 + RecordCipher.recordsFor(packet.remaining());
+					sealing.add(workers.submit(() -> seal(seq, index, packet)));
+				}
+				while (sealing.size() > depth || (!sealing.isEmpty() && sealing.peek().isDone())) {
+					writeNext();
+				}
+			}
+			out.close();
+			success = true;
+			Log.d(LOG_TAG, getName() + " finished normally");
+		} catch (IOException e) {
+			Log.e(LOG_TAG, getName(), e);
+			abort.run();
+		} catch (InterruptedException e) {
+			Log.d(LOG_TAG, getName() + " interrupted");
+		} finally {
+			for (Future<Sealed> future : sealing) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Runs on a worker: seals the frame header and the payload of {@code packet} from record
+	 * {@code index} on into buffers of the pool, and gives {@code packet} back.
+	 */
+	private Sealed seal(long seq, long index, ByteBuffer packet) throws IOException {
+		final int length = packet.remaining();
+		final ByteBuffer[] records = new ByteBuffer[1 + RecordCipher.recordsFor(length)];
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(seq).putInt(length).flip();
+		records[0] = recordPool.pop(SealedHeaderSize);
+		cipher.seal(index, header, false, records[0]);
+		records[0].flip();
+		final ByteBuffer slice = packet.duplicate();
+		for (int i = 1; i < records.length; i++) {
+			slice.limit(Math.min(slice.position() + RecordCipher.RECORD_SIZE, packet.limit()));
+			records[i] = recordPool.pop(RecordCipher.MAX_SEALED_LENGTH);
+			cipher.seal(index + i, slice, false, records[i]);
+			records[i].flip();
+		}
+		bufferPool.push(packet);
+		return new Sealed(records, length);
+	}
+
+	/**
+	 * Writes the oldest frame, waiting for it to be sealed, together with the frames behind it
+	 * that are sealed already.
+	 */
+	private void writeNext() throws IOException, InterruptedException {
+		int count = 0;
+		long length = 0;
+		do {
+			final Sealed sealed;
+			try {
+				sealed = sealing.remove().get();
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+			}
+			for (ByteBuffer buf : sealed.records) {
+				gather[count++] = buf;
+			}
+			length += sealed.length;
+		} while (!sealing.isEmpty() && sealing.peek().isDone()
+				&& count + frameRecords <= gather.length);
+		writeFully(count);
+		for (int i = 0; i < count; i++) {
+			recordPool.push(gather[i]);
+			gather[i] = null;
+		}
+		rate.increase(length);
+	}
+
+	private void writeFully(int count) throws IOException {
+		while (gather[count - 1].hasRemaining()) {
+			out.write(gather, 0, count);
+		}
+	}
+
+	private static class Sealed {
+		final ByteBuffer[] records;
+		final int length;
+
+		Sealed(ByteBuffer[] records, int length) {
+			this.records = records;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Hands out the buffers of one channel to all stripes of a session, numbering them in the
+	 * order the protocol needs them back.
+	 */
+	public static class Sequencer {
+		private final Channel in;
+		private long next = 0;
+
+		public Sequencer(Channel in) {
+			this.in = in;
+		}
+	}
+}
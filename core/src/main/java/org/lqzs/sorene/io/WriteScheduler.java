@@ -0,0 +1,20 @@
+package org.lqzs.sorene.io;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets the {@link DirectoryWriter}s of concurrent sessions take turns on the storage, one write
+ * at a time in the order they asked, so that a session with large files doesn't starve the
+ * others.
+ */
+public class WriteScheduler {
+	private final ReentrantLock turn = new ReentrantLock(true);
+
+	void begin() throws InterruptedException {
+		turn.lockInterruptibly();
+	}
+
+	void end() {
+		turn.unlock();
+	}
+}
@@ -0,0 +1,163 @@
+package org.lqzs.sorene.security;
+
+import org.lqzs.sorene.io.Log;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.EnumMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * The ways the records of the data streams can be protected. Peers advertise the suites they
+ * support with their measured throughput and use the one that is fastest on both sides.
+ */
+public enum CipherSuite {
+    AES_GCM(1, "AES/GCM/NoPadding", "AES"),
+    CHACHA20_POLY1305(2, "ChaCha20-Poly1305", "ChaCha20"),
+    /**
+     * Authenticates records with a truncated HMAC-SHA256 but sends them in the clear, for links
+     * that are trusted, like a cable or a tether. Only used when both peers allow it.
+     */
+    INTEGRITY_ONLY(3, "HmacSHA256", "HmacSHA256");
+
+    private static final String LOG_TAG = "CipherSuite";
+    private static final int MAX_SUITES = 16;
+    private static final long CALIBRATION_NANOS = 50_000_000L;
+
+    public final int id;
+    final String algorithm;
+    final String keyAlgorithm;
+
+    CipherSuite(int id, String algorithm, String keyAlgorithm) {
+        this.id = id;
+        this.algorithm = algorithm;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    public boolean isEncrypting() {
+        return this != INTEGRITY_ONLY;
+    }
+
+    public boolean isSupported() {
+        try {
+            if (isEncrypting()) {
+                Cipher.getInstance(algorithm);
+            } else {
+                Mac.getInstance(algorithm);
+            }
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    public static CipherSuite forId(int id) throws IOException {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        throw new IOException("Unknown cipher suite " + id);
+    }
+
+    /**
+     * Seals full records with a throwaway key for a few milliseconds.
+     *
+     * @return bytes per second, or 0 if the suite doesn't work on this device
+     */
+    public long measure() {
+        if (!isSupported()) {
+            return 0;
+        }
+        try {
+            final RecordCipher cipher = new RecordCipher(this, new byte[32], new byte[RecordCipher.PREFIX_LENGTH]);
+            final ByteBuffer plaintext = ByteBuffer.allocate(RecordCipher.RECORD_SIZE);
+            final ByteBuffer sealed = ByteBuffer.allocate(RecordCipher.MAX_SEALED_LENGTH);
+            // the first round only warms up the cipher and the compiler
+            long index = 0;
+            long bytes = 0;
+            long elapsed = 0;
+            for (int round = 0; round < 2; round++) {
+                bytes = 0;
+                final long start = System.nanoTime();
+                do {
+                    plaintext.clear();
+                    sealed.clear();
+                    cipher.seal(index++, plaintext, false, sealed);
+                    bytes += RecordCipher.RECORD_SIZE;
+                    elapsed = System.nanoTime() - start;
+                } while (elapsed < CALIBRATION_NANOS);
+            }
+            return bytes * 1_000_000_000L / elapsed;
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Calibration of " + this + " failed", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the suites with a non-zero rate, the offer of one peer.
+     */
+    public static void writeRates(Map<CipherSuite, Long> rates, DataOutput out) throws IOException {
+        int count = 0;
+        for (long rate : rates.values()) {
+            if (rate > 0) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (Map.Entry<CipherSuite, Long> entry : rates.entrySet()) {
+            if (entry.getValue() > 0) {
+                out.writeByte(entry.getKey().id);
+                out.writeLong(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads an offer, skipping suites this side doesn't know.
+     */
+    public static Map<CipherSuite, Long> readRates(DataInput in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > MAX_SUITES) {
+            throw new IOException("Invalid cipher suite count " + count);
+        }
+        final Map<CipherSuite, Long> rates = new EnumMap<>(CipherSuite.class);
+        for (int i = 0; i < count; i++) {
+            final int id = in.readUnsignedByte();
+            final long rate = in.readLong();
+            for (CipherSuite suite : values()) {
+                if (suite.id == id && rate > 0) {
+                    rates.put(suite, rate);
+                }
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * Picks the suite both peers support whose slower side is fastest.
+     *
+     * @return null if there is none
+     */
+    public static CipherSuite choose(Map<CipherSuite, Long> local, Map<CipherSuite, Long> peer) {
+        CipherSuite best = null;
+        long bestRate = 0;
+        for (Map.Entry<CipherSuite, Long> entry : local.entrySet()) {
+            final Long peerRate = peer.get(entry.getKey());
+            if (entry.getValue() <= 0 || peerRate == null) {
+                continue;
+            }
+            final long rate = Math.min(entry.getValue(), peerRate);
+            if (rate > bestRate) {
+                best = entry.getKey();
+                bestRate = rate;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,196 @@
+package org.lqzs.sorene.security;
+
+import org.lqzs.sorene.io.Log;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+
+public class FileEncryption {
+    private static final String LOG_TAG = "FileEncryption";
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int TOKEN_MAC_LENGTH = 16;
+    /**
+     * A counter and a MAC over it, see {@link #newJoinToken()}.
+     */
+    public static final int JOIN_TOKEN_LENGTH = Integer.BYTES + TOKEN_MAC_LENGTH;
+
+    private final SecretKey key;
+    private final SecureRandom secureRandom;
+    private CipherSuite suite = CipherSuite.AES_GCM;
+    /**
+     * Counter of the next token the sender hands out.
+     */
+    private int nextToken = 0;
+    /**
+     * Counters of the tokens the receiver took, every token is good for one connection.
+     */
+    private final Set<Integer> usedTokens = new HashSet<>();
+
+    public FileEncryption(byte[] keyBytes) {
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.secureRandom = new SecureRandom();
+    }
+
+    /**
+     * Sets the suite for the records of the data streams, control messages always use AES-GCM.
+     */
+    public void setSuite(CipherSuite suite) {
+        this.suite = suite;
+    }
+
+    public CipherSuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * Sends a random nonce prefix and returns the cipher for the records of a stream under
+     * that prefix.
+     */
+    public RecordCipher startSealing(OutputStream outputStream) throws IOException {
+        byte[] prefix = new byte[RecordCipher.PREFIX_LENGTH];
+        secureRandom.nextBytes(prefix);
+        outputStream.write(prefix);
+        return new RecordCipher(suite, getRecordKey(), prefix);
+    }
+
+    /**
+     * Reads the nonce prefix that {@link #startSealing(OutputStream)} sent and returns the
+     * cipher for the records that follow.
+     */
+    public RecordCipher startOpening(InputStream inputStream) throws IOException {
+        byte[] prefix = new byte[RecordCipher.PREFIX_LENGTH];
+        new DataInputStream(inputStream).readFully(prefix);
+        return new RecordCipher(suite, getRecordKey(), prefix);
+    }
+
+    /**
+     * Encrypts a single message with its own IV, for the control messages sent outside of the
+     * data streams.
+     */
+    public byte[] seal(byte[] message) throws IOException {
+        try {
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            secureRandom.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            byte[] sealed = new byte[GCM_IV_LENGTH + cipher.getOutputSize(message.length)];
+            System.arraycopy(iv, 0, sealed, 0, GCM_IV_LENGTH);
+            cipher.doFinal(message, 0, message.length, sealed, GCM_IV_LENGTH);
+            return sealed;
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Error sealing message", e);
+            throw new IOException("Failed to seal message", e);
+        }
+    }
+
+    public byte[] open(byte[] sealed) throws IOException {
+        if (sealed.length < GCM_IV_LENGTH + GCM_TAG_LENGTH / 8) {
+            throw new IOException("Sealed message too short");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, sealed, 0, GCM_IV_LENGTH));
+            return cipher.doFinal(sealed, GCM_IV_LENGTH, sealed.length - GCM_IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Error opening message", e);
+            throw new IOException("Failed to open message", e);
+        }
+    }
+
+    /**
+     * Proof of knowing the session key, sent by the extra connections of a striped session.
+     * Every token carries a new counter under the MAC, so that a token seen on the wire can't
+     * be replayed.
+     */
+    public byte[] newJoinToken() throws IOException {
+        return newToken("sorene join");
+    }
+
+    /**
+     * Proof of knowing the session key, sent by a sender that reconnects to resume the session.
+     */
+    public byte[] newResumeToken() throws IOException {
+        return newToken("sorene resume");
+    }
+
+    /**
+     * @return whether {@code token} came from {@link #newJoinToken()} under this key and
+     * hasn't been taken before
+     */
+    public boolean takeJoinToken(byte[] token) throws IOException {
+        return takeToken("sorene join", token);
+    }
+
+    /**
+     * @return whether {@code token} came from {@link #newResumeToken()} under this key and
+     * hasn't been taken before
+     */
+    public boolean takeResumeToken(byte[] token) throws IOException {
+        return takeToken("sorene resume", token);
+    }
+
+    /**
+     * Secret behind the {@link SessionTicket} with {@code ticketId}.
+     */
+    byte[] getResumptionSecret(byte[] ticketId) throws IOException {
+        return Hkdf.expand(key.getEncoded(), "sorene resumption", ticketId, Hkdf.HASH_LENGTH);
+    }
+
+    /**
+     * A key of its own for every suite, so that no key is used with two algorithms.
+     */
+    private byte[] getRecordKey() throws IOException {
+        return mac("sorene records " + suite.id);
+    }
+
+    private synchronized byte[] newToken(String label) throws IOException {
+        return token(label, nextToken++);
+    }
+
+    private synchronized boolean takeToken(String label, byte[] token) throws IOException {
+        if (token.length != JOIN_TOKEN_LENGTH) {
+            return false;
+        }
+        final int counter = ByteBuffer.wrap(token).getInt();
+        if (!MessageDigest.isEqual(token(label, counter), token)) {
+            return false;
+        }
+        return usedTokens.add(counter);
+    }
+
+    private byte[] token(String label, int counter) throws IOException {
+        final ByteBuffer token = ByteBuffer.allocate(JOIN_TOKEN_LENGTH);
+        token.putInt(counter);
+        token.put(mac(label + " " + counter), 0, TOKEN_MAC_LENGTH);
+        return token.array();
+    }
+
+    private byte[] mac(String label) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            Log.e(LOG_TAG, "Error computing key", e);
+            throw new IOException("Failed to compute key", e);
+        }
+    }
+}
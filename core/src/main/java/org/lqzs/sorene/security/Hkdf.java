@@ -0,0 +1,59 @@
+package org.lqzs.sorene.security;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HKDF with HMAC-SHA256 (RFC 5869).
+ */
+public class Hkdf {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    public static final int HASH_LENGTH = 32;
+
+    private Hkdf() {
+    }
+
+    public static byte[] extract(byte[] salt, byte[] inputKeyMaterial) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt, MAC_ALGORITHM));
+            return mac.doFinal(inputKeyMaterial);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HKDF extract failed", e);
+        }
+    }
+
+    /**
+     * @param label    what the key is for
+     * @param context  bytes that tie the key to one session, may be empty
+     */
+    public static byte[] expand(byte[] pseudoRandomKey, String label, byte[] context, int length)
+            throws IOException {
+        if (length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("HKDF output too long");
+        }
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(pseudoRandomKey, MAC_ALGORITHM));
+            byte[] info = label.getBytes(StandardCharsets.UTF_8);
+            byte[] output = new byte[length];
+            byte[] block = new byte[0];
+            for (int i = 0, pos = 0; pos < length; i++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update(context);
+                mac.update((byte) (i + 1));
+                block = mac.doFinal();
+                int n = Math.min(block.length, length - pos);
+                System.arraycopy(block, 0, output, pos, n);
+                pos += n;
+            }
+            return output;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HKDF expand failed", e);
+        }
+    }
+}
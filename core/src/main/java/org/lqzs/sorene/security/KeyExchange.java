@@ -1,6 +1,6 @@
 package org.lqzs.sorene.security;
 
-import android.util.Log;
+import org.lqzs.sorene.io.Log;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -15,6 +15,7 @@ public class KeyExchange {
     private static final String LOG_TAG = "KeyExchange";
     private static final String KEY_ALGORITHM = "EC";
     private static final String KEY_AGREEMENT_ALGORITHM = "ECDH";
+    public static final int MAX_PUBLIC_KEY_LENGTH = 4096;
 
     private final KeyPair keyPair;
     private final SecureRandom secureRandom;
@@ -41,16 +42,35 @@ public class KeyExchange {
             keyAgreement.doPhase(peerPublicKey, true);
 
             byte[] sharedSecret = keyAgreement.generateSecret();
-            return deriveAESKey(sharedSecret);
+            return deriveKey(sharedSecret, getPublicKey(), peerPublicKeyBytes);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error generating shared secret", e);
             throw new IOException("Failed to generate shared secret", e);
         }
     }
 
-    private byte[] deriveAESKey(byte[] sharedSecret) {
-        byte[] aesKey = new byte[32];
-        System.arraycopy(sharedSecret, 0, aesKey, 0, Math.min(sharedSecret.length, 32));
-        return aesKey;
+    /**
+     * HKDF over the shared secret, salted with both public keys in a fixed order so that both
+     * sides get the same key.
+     */
+    private static byte[] deriveKey(byte[] sharedSecret, byte[] publicKey, byte[] peerPublicKey) throws IOException {
+        boolean ownFirst = compare(publicKey, peerPublicKey) < 0;
+        byte[] first = ownFirst ? publicKey : peerPublicKey;
+        byte[] second = ownFirst ? peerPublicKey : publicKey;
+        byte[] salt = new byte[first.length + second.length];
+        System.arraycopy(first, 0, salt, 0, first.length);
+        System.arraycopy(second, 0, salt, first.length, second.length);
+        byte[] pseudoRandomKey = Hkdf.extract(salt, sharedSecret);
+        return Hkdf.expand(pseudoRandomKey, "sorene session", new byte[0], Hkdf.HASH_LENGTH);
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return a.length - b.length;
     }
 } 
\ No newline at end of file
@@ -0,0 +1,172 @@
+package org.lqzs.sorene.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals and opens the records of one stream with the negotiated {@link CipherSuite}.
+ * <p>
+ * A record is a 4-byte header holding the plaintext length and a final-record flag, followed by
+ * the ciphertext and the tag. The nonce is the random prefix of the stream followed by the
+ * record index, the header is authenticated as associated data, so records can't be reordered,
+ * dropped or cut off without the receiver noticing. The integrity-only suite keeps the layout,
+ * with the plaintext in place of the ciphertext and an HMAC over nonce, header and data as tag.
+ * <p>
+ * Records are independent of each other, so several threads may seal or open records of the
+ * same stream at once, each with a cipher of its own.
+ */
+public class RecordCipher {
+    public static final int HEADER_LENGTH = 4;
+    public static final int TAG_LENGTH = 16;
+    /**
+     * A sealed record, header and tag included, fills a 64KB buffer.
+     */
+    public static final int MAX_SEALED_LENGTH = 64 * 1024;
+    public static final int RECORD_SIZE = MAX_SEALED_LENGTH - HEADER_LENGTH - TAG_LENGTH;
+    public static final int PREFIX_LENGTH = 8;
+    private static final int FINAL = 0x80000000;
+    private static final long MAX_RECORDS = 1L << 32;
+
+    private final CipherSuite suite;
+    private final SecretKey key;
+    private final byte[] prefix;
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+    private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    RecordCipher(CipherSuite suite, byte[] key, byte[] prefix) {
+        this.suite = suite;
+        this.key = new SecretKeySpec(key, suite.keyAlgorithm);
+        this.prefix = prefix.clone();
+    }
+
+    public CipherSuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * @return the number of records that {@code length} bytes of plaintext are cut into
+     */
+    public static int recordsFor(int length) {
+        return (length + RECORD_SIZE - 1) / RECORD_SIZE;
+    }
+
+    public static int header(int length, boolean last) {
+        return last ? length | FINAL : length;
+    }
+
+    public static int lengthOf(int header) {
+        return header & ~FINAL;
+    }
+
+    public static boolean isFinal(int header) {
+        return (header & FINAL) != 0;
+    }
+
+    /**
+     * Writes the header, ciphertext and tag of the remaining bytes of {@code plaintext} to
+     * {@code out}.
+     */
+    public void seal(long index, ByteBuffer plaintext, boolean last, ByteBuffer out) throws IOException {
+        final int header = header(plaintext.remaining(), last);
+        out.putInt(header);
+        try {
+            if (suite.isEncrypting()) {
+                cipher(Cipher.ENCRYPT_MODE, index, header).doFinal(plaintext, out);
+            } else {
+                final Mac mac = mac(index, header);
+                final int start = out.position();
+                out.put(plaintext);
+                final ByteBuffer data = out.duplicate();
+                data.flip().position(start);
+                mac.update(data);
+                out.put(mac.doFinal(), 0, TAG_LENGTH);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to seal record " + index, e);
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code sealed}, ciphertext and tag of the record with
+     * {@code header}, to {@code out}. Nothing is written to {@code out} unless the record is
+     * authentic.
+     */
+    public void open(long index, int header, ByteBuffer sealed, ByteBuffer out) throws IOException {
+        try {
+            if (suite.isEncrypting()) {
+                cipher(Cipher.DECRYPT_MODE, index, header).doFinal(sealed, out);
+                return;
+            }
+            if (sealed.remaining() < TAG_LENGTH) {
+                throw new GeneralSecurityException("record too short");
+            }
+            final ByteBuffer data = sealed.duplicate();
+            data.limit(sealed.limit() - TAG_LENGTH);
+            final Mac mac = mac(index, header);
+            mac.update(data.duplicate());
+            final byte[] tag = new byte[TAG_LENGTH];
+            sealed.position(data.limit());
+            sealed.get(tag);
+            final byte[] expected = mac.doFinal();
+            if (!MessageDigest.isEqual(tag, Arrays.copyOf(expected, TAG_LENGTH))) {
+                throw new GeneralSecurityException("tag mismatch");
+            }
+            out.put(data);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Record " + index + " failed authentication", e);
+        }
+    }
+
+    private Cipher cipher(int mode, long index, int header) throws GeneralSecurityException, IOException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(suite.algorithm);
+            ciphers.set(cipher);
+        }
+        final byte[] nonce = nonce(index);
+        final AlgorithmParameterSpec spec = suite == CipherSuite.AES_GCM
+                ? new GCMParameterSpec(TAG_LENGTH * 8, nonce) : new IvParameterSpec(nonce);
+        cipher.init(mode, key, spec);
+        cipher.updateAAD(aad(header));
+        return cipher;
+    }
+
+    private Mac mac(long index, int header) throws GeneralSecurityException, IOException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance(suite.algorithm);
+            mac.init(key);
+            macs.set(mac);
+        }
+        mac.update(nonce(index));
+        mac.update(aad(header));
+        return mac;
+    }
+
+    private byte[] nonce(long index) throws IOException {
+        if (index < 0 || index >= MAX_RECORDS) {
+            throw new IOException("Too many records");
+        }
+        final byte[] nonce = new byte[PREFIX_LENGTH + 4];
+        System.arraycopy(prefix, 0, nonce, 0, PREFIX_LENGTH);
+        nonce[PREFIX_LENGTH] = (byte) (index >>> 24);
+        nonce[PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        nonce[PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        nonce[PREFIX_LENGTH + 3] = (byte) index;
+        return nonce;
+    }
+
+    private static byte[] aad(int header) {
+        return new byte[]{(byte) (header >>> 24), (byte) (header >>> 16), (byte) (header >>> 8), (byte) header};
+    }
+}
@@ -0,0 +1,148 @@
+package org.lqzs.sorene.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+/**
+ * Lets a returning sender skip the key exchange. At the end of a handshake the receiver hands
+ * out a ticket id for a resumption secret that both sides derive from the session key; the
+ * next session presents the id and both derive a fresh key from the secret and a random value
+ * of each side. Tickets are used once.
+ */
+public class SessionTicket {
+    public static final int ID_LENGTH = 16;
+    public static final int RANDOM_LENGTH = 32;
+    private static final long LIFETIME = 24 * 60 * 60 * 1000L;
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    public final byte[] id;
+    private final byte[] secret;
+    public final long expiresAt;
+
+    private SessionTicket(byte[] id, byte[] secret, long expiresAt) {
+        this.id = id;
+        this.secret = secret;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Receiver side: a new ticket for the session that {@code encryption} protects.
+     */
+    public static SessionTicket issue(FileEncryption encryption) throws IOException {
+        byte[] id = new byte[ID_LENGTH];
+        SECURE_RANDOM.nextBytes(id);
+        return new SessionTicket(id, encryption.getResumptionSecret(id), System.currentTimeMillis() + LIFETIME);
+    }
+
+    public static byte[] newRandom() {
+        byte[] random = new byte[RANDOM_LENGTH];
+        SECURE_RANDOM.nextBytes(random);
+        return random;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * @return the key of a resumed session
+     */
+    public byte[] deriveKey(byte[] senderRandom, byte[] receiverRandom) throws IOException {
+        byte[] context = new byte[senderRandom.length + receiverRandom.length];
+        System.arraycopy(senderRandom, 0, context, 0, senderRandom.length);
+        System.arraycopy(receiverRandom, 0, context, senderRandom.length, receiverRandom.length);
+        return Hkdf.expand(secret, "sorene session", context, Hkdf.HASH_LENGTH);
+    }
+
+    /**
+     * Sends the id and the lifetime, the secret never goes over the wire.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.write(id);
+        out.writeLong(Math.max(0, expiresAt - System.currentTimeMillis()));
+    }
+
+    /**
+     * Sender side: the ticket that the receiver of the session that {@code encryption} protects
+     * handed out.
+     */
+    public static SessionTicket read(DataInput in, FileEncryption encryption) throws IOException {
+        byte[] id = new byte[ID_LENGTH];
+        in.readFully(id);
+        long lifetime = Math.min(in.readLong(), LIFETIME);
+        if (lifetime < 0) {
+            throw new IOException("Invalid ticket lifetime " + lifetime);
+        }
+        return new SessionTicket(id, encryption.getResumptionSecret(id), System.currentTimeMillis() + lifetime);
+    }
+
+    /**
+     * Stores the whole ticket, secret included, in a string for the preferences.
+     */
+    public String encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(id);
+            out.write(secret);
+            out.writeLong(expiresAt);
+            return toHex(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static SessionTicket decode(String encoded) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(fromHex(encoded)));
+            byte[] id = new byte[ID_LENGTH];
+            byte[] secret = new byte[Hkdf.HASH_LENGTH];
+            in.readFully(id);
+            in.readFully(secret);
+            return new SessionTicket(id, secret, in.readLong());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid ticket", e);
+        }
+    }
+
+    /**
+     * @return the name the receiver keeps the ticket with {@code id} under
+     */
+    public static String nameOf(byte[] id) {
+        return toHex(id);
+    }
+
+    public String getName() {
+        return nameOf(id);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd length");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("not hex");
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
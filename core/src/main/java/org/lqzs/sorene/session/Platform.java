@@ -0,0 +1,64 @@
+package org.lqzs.sorene.session;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+
+import org.lqzs.sorene.io.RateCounter;
+import org.lqzs.sorene.security.CipherSuite;
+import org.lqzs.sorene.security.KeyExchange;
+import org.lqzs.sorene.security.SessionTicket;
+
+/**
+ * What a {@link Transfer} needs from the device it runs on: where to keep things between
+ * sessions, how much memory it may take, and where to show how it goes.
+ */
+public interface Platform {
+	/**
+	 * Throughput of every cipher suite on this device in bytes per second.
+	 *
+	 * @param integrityOnly whether to offer {@link CipherSuite#INTEGRITY_ONLY}
+	 */
+	Map<CipherSuite, Long> getSuiteRates(boolean integrityOnly);
+
+	/**
+	 * Keeps {@code ticket} under {@code name} and drops the tickets that have expired.
+	 */
+	void storeTicket(String name, SessionTicket ticket);
+
+	/**
+	 * Removes the ticket stored under {@code name}, tickets are used once.
+	 *
+	 * @return the ticket, or null if there is none that is still valid
+	 */
+	@Nullable
+	SessionTicket takeTicket(String name);
+
+	/**
+	 * @return bytes of heap this process may use, a quarter of it goes to the channels
+	 */
+	long getHeapSize();
+
+	/**
+	 * @return the key pair whose public key the receiver showed in a QR code, or null
+	 */
+	@Nullable
+	KeyExchange getPublishedKey();
+
+	/**
+	 * A published key serves one session, a second sender has to run the key exchange.
+	 */
+	void retirePublishedKey(KeyExchange key);
+
+	/**
+	 * Called every second while files are streamed.
+	 *
+	 * @param resizes how often the channels were resized, see {@link org.lqzs.sorene.io.ChannelSizer}
+	 */
+	void showProgress(Progress progress, long bufferUsed, long bufferSize, int resizes, RateCounter rate);
+
+	/**
+	 * Called once on the thread of the transfer when it is over.
+	 */
+	void finished(boolean success);
+}
@@ -0,0 +1,71 @@
+package org.lqzs.sorene.session;
+
+import org.lqzs.sorene.io.ProgressReporter;
+
+/**
+ * The progress of a transfer as the reader or writer reports it. {@link Platform#showProgress}
+ * gets a copy that doesn't change while it is shown.
+ */
+public class Progress implements ProgressReporter {
+	public String text;
+	public long now, max;
+	public long total = 0, done = 0;
+	public int filesLeft = 0;
+	public long start = System.nanoTime();
+
+	synchronized Progress get() {
+		Progress p = new Progress();
+		p.text = text;
+		p.now = now;
+		p.max = max;
+		p.total = total;
+		p.done = done;
+		p.filesLeft = filesLeft;
+		p.start = start;
+		return p;
+	}
+
+	/**
+	 * @return bytes done of the whole transfer, the current file included
+	 */
+	public long overall() {
+		return Math.min(total, done + now);
+	}
+
+	/**
+	 * @return nanoseconds left at the average speed so far, or -1 until that is known
+	 */
+	public long eta() {
+		final long elapsed = System.nanoTime() - start;
+		final long overall = overall();
+		if (overall <= 0 || elapsed < 2000000000L) {
+			return -1;
+		}
+		return (long) ((double) (total - overall) * elapsed / overall);
+	}
+
+	@Override
+	public synchronized void report(String text, long now, long max) {
+		this.text = text;
+		this.now = now;
+		this.max = max;
+	}
+
+	@Override
+	public synchronized void setTotal(long bytes, int files) {
+		total = bytes;
+		filesLeft = files;
+		done = 0;
+		start = System.nanoTime();
+	}
+
+	@Override
+	public synchronized void completed(long length) {
+		done += length;
+		now = 0;
+		max = 0;
+		if (filesLeft > 0) {
+			filesLeft--;
+		}
+	}
+}
@@ -0,0 +1,854 @@
+package org.lqzs.sorene.session;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.lqzs.sorene.io.AverageRateCounter;
+import org.lqzs.sorene.io.Channel;
+import org.lqzs.sorene.io.ChannelSizer;
+import org.lqzs.sorene.io.DirectoryWriter;
+import org.lqzs.sorene.io.DocumentTree;
+import org.lqzs.sorene.io.Journal;
+import org.lqzs.sorene.io.JournalFile;
+import org.lqzs.sorene.io.Log;
+import org.lqzs.sorene.io.Manifest;
+import org.lqzs.sorene.io.MemoryBudget;
+import org.lqzs.sorene.io.RateCounter;
+import org.lqzs.sorene.io.Reassembler;
+import org.lqzs.sorene.io.Storage;
+import org.lqzs.sorene.io.StripeReader;
+import org.lqzs.sorene.io.WriteScheduler;
+import org.lqzs.sorene.security.CipherSuite;
+import org.lqzs.sorene.security.FileEncryption;
+import org.lqzs.sorene.security.KeyExchange;
+import org.lqzs.sorene.security.SessionTicket;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Receives from any number of senders at once. One thread accepts the connections and reads
+ * their hello without blocking; a new session gets a thread of its own, with its own key.
+ * Sessions write to the root, a session that starts while another one writes there gets a
+ * folder of its own named after the sender. Extra stripes and resuming connections are routed
+ * to their session by token. The sessions share one
+ * memory budget for their channels and take turns writing to the storage.
+ */
+public class Receiver extends Transfer {
+	/**
+	 * Capacity of the channel of a new session, a {@link ChannelSizer} adapts it from there.
+	 */
+	private final static int InitialChannelSize = 16 * 1024 * 1024;
+	/**
+	 * Seconds between saves of the journal of a streaming session, what a receiver that is
+	 * killed sends again at most.
+	 */
+	private final static int JournalInterval = 10;
+	private final Storage storage;
+	private final int port;
+	/**
+	 * Memory of the channels of all sessions together, from the heap of the device.
+	 */
+	private final MemoryBudget memory;
+	private final WriteScheduler writes = new WriteScheduler();
+	private boolean integrityOnly = false;
+	private boolean keepListening = false;
+
+	public Receiver(Platform platform, Storage storage, int port) {
+		super(platform);
+		this.storage = storage;
+		this.port = port;
+		this.memory = new MemoryBudget(channelMemory());
+	}
+
+	/**
+	 * Accepts {@link CipherSuite#INTEGRITY_ONLY} from senders that offer it.
+	 */
+	public void setIntegrityOnly(boolean integrityOnly) {
+		this.integrityOnly = integrityOnly;
+	}
+
+	/**
+	 * Goes on waiting for senders after the last session, until the receiver is cancelled.
+	 */
+	public void setKeepListening(boolean keepListening) {
+		this.keepListening = keepListening;
+	}
+
+	@Override
+	Thread newThread() {
+		return new ReceiveThread();
+	}
+
+	/**
+	 * Accepts connections and hands them to their sessions. Unless it keeps listening, the
+	 * receiver stops once the last session is over.
+	 */
+	private class ReceiveThread extends Thread {
+		private final List<Session> sessions = new CopyOnWriteArrayList<>();
+		private final AverageRateCounter rate = new AverageRateCounter(5);
+		private Selector selector = null;
+		private volatile boolean cancelled = false;
+		private int succeeded = 0;
+		private int failed = 0;
+		/**
+		 * The session that writes to the root, null if none does.
+		 */
+		@Nullable
+		private Session inRoot = null;
+		/**
+		 * Number of the last session folder.
+		 */
+		private int folders = 0;
+
+		@Override
+		public void interrupt() {
+			cancelled = true;
+			for (Session session : sessions) {
+				session.cancel();
+			}
+			final Selector selector = this.selector;
+			if (selector != null) {
+				selector.wakeup();
+			}
+			super.interrupt();
+		}
+
+		@Override
+		public void run() {
+			final Timer timer = new Timer();
+			ServerSocketChannel listener = null;
+			try {
+				selector = Selector.open();
+				listener = ServerSocketChannel.open();
+				listener.socket().setReuseAddress(true);
+				listener.socket().setPerformancePreferences(0, 0, 1);
+				listener.socket().setReceiveBufferSize(TcpBufferSize);
+				listener.socket().bind(new InetSocketAddress(port));
+				listener.configureBlocking(false);
+				listener.register(selector, SelectionKey.OP_ACCEPT);
+				Log.d(LOG_TAG, "Receiver listens on port " + port);
+				timer.schedule(new TimerTask() {
+					private int ticks = 0;
+
+					@Override
+					public void run() {
+						showSessions();
+						if (++ticks % JournalInterval == 0) {
+							for (Session session : sessions) {
+								session.saveJournal();
+							}
+						}
+					}
+				}, 1000, 1000);
+				final List<SelectionKey> ready = new ArrayList<>();
+				while (!cancelled) {
+					selector.select(1000);
+					final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept(listener);
+						} else if (key.isReadable() && readHello(key)) {
+							ready.add(key);
+						}
+					}
+					expireHellos();
+					if (!ready.isEmpty()) {
+						dispatch(ready);
+						ready.clear();
+					}
+					if (!keepListening && sessions.isEmpty() && succeeded + failed > 0) {
+						break;
+					}
+				}
+			} catch (Exception e) {
+				Log.e(LOG_TAG, "Receiver unexpected exception", e);
+			} finally {
+				timer.cancel();
+				if (selector != null) {
+					for (SelectionKey key : selector.keys()) {
+						closeQuietly(key.channel());
+					}
+					closeQuietly(selector);
+				}
+				closeQuietly(listener);
+				for (Session session : sessions) {
+					session.cancel();
+				}
+				Log.d(LOG_TAG, "Receiver closing");
+				platform.finished(succeeded > 0 && failed == 0);
+			}
+		}
+
+		private void accept(ServerSocketChannel listener) throws IOException {
+			SocketChannel channel;
+			while ((channel = listener.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, new Hello());
+			}
+		}
+
+		/**
+		 * Reads what has arrived of the hello of a connection.
+		 *
+		 * @return whether the hello is complete
+		 */
+		private boolean readHello(SelectionKey key) {
+			final Hello hello = (Hello) key.attachment();
+			final SocketChannel channel = (SocketChannel) key.channel();
+			try {
+				if (channel.read(hello.buffer) < 0) {
+					key.cancel();
+					closeQuietly(channel);
+					return false;
+				}
+			} catch (IOException e) {
+				key.cancel();
+				closeQuietly(channel);
+				return false;
+			}
+			if (hello.buffer.position() == Integer.BYTES) {
+				final int code = hello.buffer.getInt(0);
+				if (code == HelloJoin || code == HelloResume) {
+					hello.buffer.limit(Integer.BYTES + FileEncryption.JOIN_TOKEN_LENGTH);
+				}
+			}
+			return !hello.buffer.hasRemaining();
+		}
+
+		/**
+		 * Closes connections that didn't say hello in time.
+		 */
+		private void expireHellos() {
+			final long now = System.nanoTime();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Hello
+						&& now - ((Hello) key.attachment()).since > TimeUnit.MILLISECONDS.toNanos(JoinTimeout)) {
+					key.cancel();
+					closeQuietly(key.channel());
+				}
+			}
+		}
+
+		/**
+		 * Takes the connections with a complete hello off the selector and hands them to their
+		 * sessions, or starts a new session.
+		 */
+		private void dispatch(List<SelectionKey> ready) throws IOException {
+			for (SelectionKey key : ready) {
+				key.cancel();
+			}
+			// the channels can only block again once the cancelled keys are deregistered
+			selector.selectNow();
+			for (SelectionKey key : ready) {
+				final SocketChannel channel = (SocketChannel) key.channel();
+				final ByteBuffer hello = ((Hello) key.attachment()).buffer;
+				final int code = hello.getInt(0);
+				try {
+					channel.configureBlocking(true);
+					final Socket socket = channel.socket();
+					if (code == HelloJoin || code == HelloResume) {
+						final byte[] token = new byte[FileEncryption.JOIN_TOKEN_LENGTH];
+						hello.position(Integer.BYTES);
+						hello.get(token);
+						if (!route(socket, code, token)) {
+							Log.w(LOG_TAG, "rejected connection from " + socket.getInetAddress());
+							channel.close();
+						}
+						continue;
+					}
+					final Session session = new Session(this, socket, code);
+					sessions.add(session);
+					session.setName("Session-" + socket.getInetAddress().getHostAddress());
+					session.start();
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "dispatch failed", e);
+					closeQuietly(channel);
+				}
+			}
+		}
+
+		/**
+		 * @return false if no session has {@code token}
+		 */
+		private boolean route(Socket socket, int code, byte[] token) {
+			for (Session session : sessions) {
+				if (code == HelloJoin ? session.join(socket, token) : session.resume(socket, token)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @param started whether the session got past its handshake, a rejected sender doesn't
+		 *                count and the receiver keeps listening
+		 */
+		private synchronized void finished(Session session, boolean started, boolean success) {
+			sessions.remove(session);
+			if (inRoot == session) {
+				inRoot = null;
+			}
+			if (success) {
+				succeeded++;
+			} else if (started) {
+				failed++;
+			}
+			Log.d(LOG_TAG, session.getName() + " over, success=" + success + ", " + sessions.size() + " left");
+			final Selector selector = this.selector;
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * The tree {@code session} writes to: the root, unless another session writes there.
+		 * Then the files of the two would mix, and the new session gets a folder of its own.
+		 */
+		synchronized DocumentTree destination(Session session) throws IOException {
+			if (inRoot == null) {
+				inRoot = session;
+				return new DocumentTree(storage, storage.getRoot());
+			}
+			final DocumentTree.Entry folder = newFolder(session.peer);
+			if (folder == null) {
+				throw new IOException("can't create a folder for " + session.peer);
+			}
+			return new DocumentTree(storage, folder.node);
+		}
+
+		/**
+		 * Creates a folder in the root, named after the sender and a number that no folder
+		 * there has yet.
+		 */
+		@Nullable
+		private DocumentTree.Entry newFolder(String peer) {
+			final DocumentTree root = new DocumentTree(storage, storage.getRoot());
+			// the colons of an IPv6 address aren't allowed in the names of every file system
+			final String prefix = peer.replace(':', '_') + "-";
+			String name;
+			do {
+				name = prefix + ++folders;
+			} while (root.find(name) != null);
+			Log.d(LOG_TAG, peer + " writes to " + name + "/");
+			return root.makeDirectories(name);
+		}
+
+		/**
+		 * Shows the sessions that are streaming as one transfer.
+		 */
+		private void showSessions() {
+			final Progress all = new Progress();
+			final StringBuilder text = new StringBuilder();
+			long overall = 0;
+			long capacity = 0;
+			int resizes = 0;
+			int streaming = 0;
+			for (Session session : sessions) {
+				final Progress progress = session.progress;
+				final ChannelSizer sizer = session.sizer;
+				if (progress == null || sizer == null) {
+					continue;
+				}
+				sizer.tick();
+				capacity += session.channel.getCapacity();
+				resizes += sizer.getResizes();
+				final Progress p = progress.get();
+				if (p.text != null) {
+					if (text.length() > 0) {
+						text.append('\n');
+					}
+					text.append(sessions.size() > 1 ? session.peer + ": " + p.text : p.text);
+				}
+				all.total += p.total;
+				all.filesLeft += p.filesLeft;
+				all.start = streaming == 0 ? p.start : Math.min(all.start, p.start);
+				overall += p.overall();
+				streaming++;
+			}
+			if (streaming == 0) {
+				return;
+			}
+			all.done = overall;
+			all.text = text.length() > 0 ? text.toString() : null;
+			platform.showProgress(all, memory.getUsed(), Math.min(capacity, memory.getCapacity()), resizes, rate);
+		}
+	}
+
+	/**
+	 * The connection state of a socket until its hello is complete.
+	 */
+	private static class Hello {
+		final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + FileEncryption.JOIN_TOKEN_LENGTH);
+		final long since = System.nanoTime();
+
+		Hello() {
+			buffer.limit(Integer.BYTES);
+		}
+	}
+
+	private static void closeQuietly(@Nullable Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * One sender: the handshake, the streams and the resumes of a broken session.
+	 */
+	private class Session extends Thread {
+		final String peer;
+		private final ReceiveThread receiver;
+		private final Socket first;
+		private final int hello;
+		private FileEncryption fileEncryption;
+		private Journal journal;
+		/**
+		 * Where the journal is kept between sessions, set once the handshake has the manifest.
+		 */
+		@Nullable
+		private volatile JournalFile journalFile = null;
+		private Manifest manifest;
+		private DocumentTree tree;
+		/**
+		 * Set once the handshake is over, streams may join or resume from then on.
+		 */
+		private volatile boolean established = false;
+		private final LinkedBlockingQueue<Socket> resumes = new LinkedBlockingQueue<>();
+		/**
+		 * The streams of the current connection, the first one and those that joined. Joins
+		 * that arrive before the first stream told how many there are wait here as well.
+		 */
+		private final List<Socket> streams = new ArrayList<>();
+		/**
+		 * Number of streams of the current connection, 0 until the first stream told it.
+		 */
+		private int expected = 0;
+		private volatile boolean cancelled = false;
+		volatile Progress progress = null;
+		/**
+		 * The channel of the streaming session and what resizes it, set together with
+		 * {@link #progress}.
+		 */
+		volatile Channel channel = null;
+		volatile ChannelSizer sizer = null;
+
+		Session(ReceiveThread receiver, Socket first, int hello) {
+			this.receiver = receiver;
+			this.first = first;
+			this.hello = hello;
+			this.peer = first.getInetAddress().getHostAddress();
+		}
+
+		void cancel() {
+			cancelled = true;
+			abort();
+		}
+
+		/**
+		 * Tears down the current connections, the sender may resume the session afterwards.
+		 */
+		private void abort() {
+			synchronized (this) {
+				for (Socket socket : streams) {
+					try {
+						socket.setSoLinger(true, 0);
+						socket.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+			interrupt();
+		}
+
+		private synchronized void closeSockets() {
+			for (Socket socket : streams) {
+				closeQuietly(socket);
+			}
+			streams.clear();
+			expected = 0;
+		}
+
+		/**
+		 * Starts a connection with {@code first} as its first stream.
+		 */
+		private synchronized void startStreams(Socket first) {
+			closeSockets();
+			streams.add(first);
+		}
+
+		/**
+		 * Adds {@code socket} as a stripe if it has an unused join token of this session and a
+		 * stripe is missing. The token is only used up by a join that is taken.
+		 */
+		synchronized boolean join(Socket socket, byte[] token) {
+			if (!established || streams.isEmpty()
+					|| streams.size() >= (expected > 0 ? expected : MaxStreams)
+					|| !takeToken(token, true)) {
+				return false;
+			}
+			streams.add(socket);
+			notifyAll();
+			return true;
+		}
+
+		/**
+		 * Hands {@code socket} to this session if it has the resume token of it.
+		 */
+		boolean resume(Socket socket, byte[] token) {
+			if (!established || !takeToken(token, false)) {
+				return false;
+			}
+			resumes.add(socket);
+			return true;
+		}
+
+		private boolean takeToken(byte[] token, boolean join) {
+			try {
+				return join ? fileEncryption.takeJoinToken(token) : fileEncryption.takeResumeToken(token);
+			} catch (IOException e) {
+				Log.w(LOG_TAG, peer + ": can't check token", e);
+				return false;
+			}
+		}
+
+		@Override
+		public void run() {
+			boolean started = false;
+			boolean success = false;
+			try {
+				Socket socket = first;
+				startStreams(socket);
+				if (!handshake(socket, hello)) {
+					Log.w(LOG_TAG, "rejected connection from " + peer);
+					return;
+				}
+				started = true;
+				while (true) {
+					try {
+						streamCopy(awaitStreams(socket));
+						success = true;
+						return;
+					} catch (IOException | InterruptedException e) {
+						if (cancelled) {
+							throw e;
+						}
+						Log.w(LOG_TAG, peer + ": session broken, waiting for the sender to resume", e);
+					} finally {
+						closeSockets();
+					}
+					// for a sender that comes back too late to resume, or a receiver that is stopped
+					saveJournal();
+					Thread.interrupted(); // clear the abort of the broken session
+					socket = awaitResume();
+					if (socket == null) {
+						return;
+					}
+				}
+			} catch (Exception e) {
+				if (!cancelled) {
+					Log.e(LOG_TAG, peer + ": unexpected exception", e);
+				}
+			} finally {
+				closeSockets();
+				Socket socket;
+				while ((socket = resumes.poll()) != null) {
+					closeQuietly(socket);
+				}
+				final JournalFile journalFile = this.journalFile;
+				if (journalFile != null) {
+					if (success) {
+						journalFile.delete();
+					} else {
+						journalFile.save(journal);
+					}
+				}
+				progress = null;
+				receiver.finished(this, started, success);
+			}
+		}
+
+		/**
+		 * Keeps what has been written so far for a later session of the same files.
+		 */
+		void saveJournal() {
+			final JournalFile journalFile = this.journalFile;
+			if (journalFile != null) {
+				journalFile.save(journal);
+			}
+		}
+
+		/**
+		 * Waits for the sender to reconnect with the resume token and tells it what has been
+		 * written already.
+		 *
+		 * @return the new first stream, or null if the sender didn't come back in time
+		 */
+		@Nullable
+		private Socket awaitResume() throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + ResumeTimeout;
+			long left;
+			while (!cancelled && (left = deadline - System.currentTimeMillis()) > 0) {
+				final Socket socket = resumes.poll(left, TimeUnit.MILLISECONDS);
+				if (socket == null) {
+					break;
+				}
+				startStreams(socket);
+				try {
+					final ByteArrayOutputStream message = new ByteArrayOutputStream();
+					journal.write(new DataOutputStream(message));
+					writeSealed(new DataOutputStream(socket.getOutputStream()), fileEncryption, message.toByteArray());
+					Log.d(LOG_TAG, peer + " resumes the session");
+					return socket;
+				} catch (IOException e) {
+					Log.w(LOG_TAG, peer + ": resume failed", e);
+					closeSockets();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Reads the number of streams from the first one and waits until the others joined,
+		 * some may have joined already.
+		 *
+		 * @return the streams, the first one first
+		 */
+		private Socket[] awaitStreams(Socket socket) throws IOException, InterruptedException {
+			final int count = new DataInputStream(socket.getInputStream()).readInt();
+			if (count < 1 || count > MaxStreams) {
+				throw new IOException("Invalid stream count " + count);
+			}
+			Log.d(LOG_TAG, peer + " uses " + count + " streams");
+			final long deadline = System.currentTimeMillis() + JoinTimeout;
+			synchronized (this) {
+				if (streams.size() > count) {
+					throw new IOException(streams.size() + " streams joined, " + count + " announced");
+				}
+				expected = count;
+				long left;
+				while (streams.size() < count && (left = deadline - System.currentTimeMillis()) > 0) {
+					wait(left);
+				}
+				if (streams.size() < count) {
+					throw new IOException("only " + streams.size() + " of " + count + " streams joined");
+				}
+				return streams.toArray(new Socket[0]);
+			}
+		}
+
+		/**
+		 * Runs the key exchange of the session, {@code hello} has been read already.
+		 *
+		 * @return false if the connection is rejected
+		 */
+		private boolean handshake(Socket socket, int hello) throws IOException {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+			byte[] key = null;
+			CipherSuite suite = null;
+			if (hello == HelloPublished) {
+				// The sender took the key from the QR code and chose the suite on its own
+				final KeyExchange published = platform.getPublishedKey();
+				if (published == null) {
+					return false;
+				}
+				socket.setSoTimeout(JoinTimeout);
+				final int peerKeyLength = in.readInt();
+				if (peerKeyLength < 1 || peerKeyLength > KeyExchange.MAX_PUBLIC_KEY_LENGTH) {
+					throw new IOException("Invalid public key length " + peerKeyLength);
+				}
+				final byte[] peerPublicKey = new byte[peerKeyLength];
+				in.readFully(peerPublicKey);
+				key = published.generateSharedSecret(peerPublicKey);
+				final byte[] choice;
+				try {
+					choice = readSealed(in, new FileEncryption(key));
+				} catch (IOException e) {
+					return false;
+				}
+				socket.setSoTimeout(0);
+				platform.retirePublishedKey(published);
+				if (choice.length != 1) {
+					throw new IOException("Invalid cipher suite choice");
+				}
+				suite = CipherSuite.forId(choice[0]);
+				if (!platform.getSuiteRates(integrityOnly).containsKey(suite)) {
+					throw new IOException("Sender chose cipher suite " + suite + " that isn't supported");
+				}
+				Log.d(LOG_TAG, peer + " uses the published key");
+			} else if (hello == HelloTicket) {
+				final byte[] id = new byte[SessionTicket.ID_LENGTH];
+				final byte[] senderRandom = new byte[SessionTicket.RANDOM_LENGTH];
+				socket.setSoTimeout(JoinTimeout);
+				in.readFully(id);
+				in.readFully(senderRandom);
+				final SessionTicket ticket = platform.takeTicket(SessionTicket.nameOf(id));
+				if (ticket != null) {
+					final byte[] receiverRandom = SessionTicket.newRandom();
+					out.writeBoolean(true);
+					out.write(receiverRandom);
+					out.flush();
+					key = ticket.deriveKey(senderRandom, receiverRandom);
+					Log.d(LOG_TAG, peer + " resumes from a ticket");
+				} else {
+					// unknown or expired, the sender goes on with a key exchange
+					out.writeBoolean(false);
+					out.flush();
+					hello = in.readInt();
+				}
+				socket.setSoTimeout(0);
+			}
+
+			if (key == null) {
+				int peerKeyLength = hello;
+				if (peerKeyLength < 1 || peerKeyLength > KeyExchange.MAX_PUBLIC_KEY_LENGTH) {
+					throw new IOException("Invalid public key length " + peerKeyLength);
+				}
+				byte[] peerPublicKey = new byte[peerKeyLength];
+				in.readFully(peerPublicKey);
+
+				byte[] publicKey = getKeyExchange().getPublicKey();
+				out.writeInt(publicKey.length);
+				out.write(publicKey);
+				out.flush();
+
+				key = getKeyExchange().generateSharedSecret(peerPublicKey);
+			}
+			fileEncryption = new FileEncryption(key);
+			tree = receiver.destination(this);
+
+			// Pick the fastest cipher suite that both sides support
+			final boolean chosen = suite != null;
+			if (!chosen) {
+				final Map<CipherSuite, Long> offer = CipherSuite.readRates(
+						new DataInputStream(new ByteArrayInputStream(readSealed(in, fileEncryption))));
+				suite = CipherSuite.choose(platform.getSuiteRates(integrityOnly), offer);
+				if (suite == null) {
+					throw new IOException("No common cipher suite");
+				}
+			}
+			fileEncryption.setSuite(suite);
+			Log.d(LOG_TAG, peer + ": cipher suite " + suite);
+
+			// Answer the manifest with the files that aren't here yet
+			manifest = Manifest.read(
+					new DataInputStream(new ByteArrayInputStream(readSealed(in, fileEncryption))));
+			if (!chosen) {
+				writeSealed(out, fileEncryption, new byte[]{(byte) suite.id});
+			}
+
+			// Hand out a ticket for the next session
+			final SessionTicket ticket = SessionTicket.issue(fileEncryption);
+			platform.storeTicket(ticket.getName(), ticket);
+			final ByteArrayOutputStream ticketMessage = new ByteArrayOutputStream();
+			ticket.write(new DataOutputStream(ticketMessage));
+			writeSealed(out, fileEncryption, ticketMessage.toByteArray());
+			// The same files may have been sent here before and broken off, the journal of that
+			// transfer tells the sender where to go on
+			final JournalFile journalFile = new JournalFile(tree, manifest);
+			final Journal saved = journalFile.load();
+			journal = saved != null ? saved : new Journal();
+			this.journalFile = journalFile;
+			if (saved != null) {
+				Log.d(LOG_TAG, peer + " goes on from an earlier session");
+			}
+			manifest.compare(tree, saved);
+			final ByteArrayOutputStream answer = new ByteArrayOutputStream();
+			final DataOutputStream answerData = new DataOutputStream(answer);
+			manifest.writeAnswer(answerData);
+			journal.write(answerData);
+			writeSealed(out, fileEncryption, answer.toByteArray());
+			established = true;
+			return true;
+		}
+
+		private void streamCopy(Socket[] sockets) throws InterruptedException, IOException {
+			final Channel channel = new Channel((int) Math.min(InitialChannelSize, memory.getCapacity()), memory);
+			final Progress progress = new Progress();
+			progress.setTotal(manifest.remainingBytes(journal), manifest.remainingFiles(journal));
+			final DirectoryWriter writer = new DirectoryWriter(tree, journal, channel, progress, bufferPool);
+			writer.setScheduler(writes);
+			final Reassembler reassembler = new Reassembler(channel, sockets.length, 4 * sockets.length);
+			final StripeReader[] readers = new StripeReader[sockets.length];
+			final RateCounter rate = receiver.rate;
+			final ExecutorService workers = newCryptoWorkers();
+			final int depth = cryptoDepth(sockets.length);
+			writer.start();
+			this.channel = channel;
+			this.sizer = new ChannelSizer(channel, MinChannelMemory, (int) memory.getCapacity());
+			this.progress = progress;
+			try {
+				for (int i = 0; i < sockets.length; i++) {
+					final InputStream in = sockets[i].getInputStream();
+					readers[i] = new StripeReader(sockets[i].getChannel(), fileEncryption.startOpening(in), workers,
+							depth, reassembler, bufferPool, recordPool, rate, this::abort);
+					readers[i].setName(getName() + "-StripeReader-" + i);
+					readers[i].start();
+				}
+				boolean success = true;
+				for (StripeReader reader : readers) {
+					reader.join();
+					success &= reader.isSuccess();
+				}
+				if (!success) {
+					throw new IOException("stripe failed");
+				}
+				writer.join();
+				if (!writer.isSuccess()) {
+					throw new IOException("writer failed");
+				}
+				Log.d(LOG_TAG, getName() + " finished normally, " + bufferPool);
+			} finally {
+				this.progress = null;
+				this.sizer = null;
+				this.channel = null;
+				writer.interrupt();
+				for (StripeReader reader : readers) {
+					if (reader != null) {
+						reader.interrupt();
+					}
+				}
+				workers.shutdown();
+				// the journal must be final before a resume can be answered
+				final boolean interrupted = Thread.interrupted();
+				writer.join();
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
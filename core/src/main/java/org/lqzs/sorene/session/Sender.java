@@ -0,0 +1,729 @@
+package org.lqzs.sorene.session;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.lqzs.sorene.io.AverageRateCounter;
+import org.lqzs.sorene.io.BufferPool;
+import org.lqzs.sorene.io.Channel;
+import org.lqzs.sorene.io.ChannelSizer;
+import org.lqzs.sorene.io.ChunkSizer;
+import org.lqzs.sorene.io.Compressor;
+import org.lqzs.sorene.io.DirectoryReader;
+import org.lqzs.sorene.io.FanOut;
+import org.lqzs.sorene.io.Journal;
+import org.lqzs.sorene.io.Log;
+import org.lqzs.sorene.io.Manifest;
+import org.lqzs.sorene.io.RateCounter;
+import org.lqzs.sorene.io.Storage;
+import org.lqzs.sorene.io.StripeWriter;
+import org.lqzs.sorene.security.CipherSuite;
+import org.lqzs.sorene.security.FileEncryption;
+import org.lqzs.sorene.security.KeyExchange;
+import org.lqzs.sorene.security.SessionTicket;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * Sends {@code files} from the root of a {@link Storage} to one receiver, or to several at once
+ * in a fan-out session. A broken session is resumed where it stopped.
+ */
+public class Sender extends Transfer {
+	/**
+	 * Capacity of a channel when the transfer starts, a {@link ChannelSizer} adapts it from
+	 * there.
+	 */
+	private final static int InitialChannelSize = 8 * 1024 * 1024;
+	private final static int ConnectTimeout = 4000;
+	private final Storage storage;
+	private final String[] files;
+	/**
+	 * Receivers, several of them get the same files in one fan-out session.
+	 */
+	private final String[] hosts;
+	private final int port;
+	private int streams = 0;
+	private boolean delta = true;
+	private boolean compress = true;
+	private boolean integrityOnly = false;
+	/**
+	 * Public key of the receiver from its QR code, until a session used it.
+	 */
+	@Nullable
+	private byte[] publishedKey = null;
+	private Map<CipherSuite, Long> publishedSuites = null;
+	private Future<Manifest> scan;
+
+	/**
+	 * @param files names of files and directories in the root of {@code storage}
+	 */
+	public Sender(Platform platform, Storage storage, String[] files, String[] hosts, int port) {
+		super(platform);
+		this.storage = storage;
+		this.files = files;
+		this.hosts = hosts;
+		this.port = port;
+	}
+
+	/**
+	 * @param streams parallel connections, or 0 to pick them by the round trip time
+	 */
+	public void setStreams(int streams) {
+		this.streams = streams;
+	}
+
+	/**
+	 * Sends large files that changed as a {@link org.lqzs.sorene.io.Delta}, with a single
+	 * receiver only.
+	 */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Offers {@link CipherSuite#INTEGRITY_ONLY} for links that need no secrecy.
+	 */
+	public void setIntegrityOnly(boolean integrityOnly) {
+		this.integrityOnly = integrityOnly;
+	}
+
+	/**
+	 * Starts the session with the key that a single receiver published in its QR code, which
+	 * saves a round trip.
+	 *
+	 * @param suites the cipher suites the receiver supports
+	 */
+	public void setPublishedKey(@Nullable byte[] key, Map<CipherSuite, Long> suites) {
+		this.publishedKey = key;
+		this.publishedSuites = suites;
+	}
+
+	@Override
+	Thread newThread() {
+		return hosts.length > 1 ? new FanOutThread(hosts) : new TransferThread(hosts[0], null);
+	}
+
+	/**
+	 * The session with one receiver, on its own or as part of a {@link FanOutThread}.
+	 */
+	private class TransferThread extends Thread {
+		private final String host;
+		@Nullable
+		private final FanOutThread fan;
+		private volatile Socket[] sockets = new Socket[0];
+		private volatile boolean cancelled = false;
+		private volatile boolean succeeded = false;
+		/**
+		 * Public key of the receiver from its QR code, until a session used it.
+		 */
+		@Nullable
+		private byte[] publishedKey;
+		private FileEncryption fileEncryption;
+		private Manifest manifest;
+		/**
+		 * Whether the fan-out has heard from this receiver, it waits for all of them once.
+		 */
+		private boolean arrived = false;
+		private int sendBufferSize = TcpBufferSize;
+
+		TransferThread(String host, @Nullable FanOutThread fan) {
+			this.host = host;
+			this.fan = fan;
+			this.publishedKey = fan == null ? Sender.this.publishedKey : null;
+		}
+
+		@Override
+		public void interrupt() {
+			cancelled = true;
+			abort();
+		}
+
+		/**
+		 * Tears down the current connections, the session is resumed unless it was cancelled.
+		 */
+		private void abort() {
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					try {
+						socket.setSoLinger(true, 0);
+						socket.close();
+					} catch (IOException e) {
+						Log.e(LOG_TAG, "cancel: socket close failed", e);
+					}
+				}
+			}
+			super.interrupt();
+		}
+
+		private Socket connect(InetAddress address) throws IOException {
+			final Socket socket = newSocket();
+			socket.connect(new InetSocketAddress(address, port), ConnectTimeout);
+			return socket;
+		}
+
+		private Socket newSocket() throws IOException {
+			// a socket with a channel, the stripes write to the channel directly
+			final Socket socket = SocketChannel.open().socket();
+			socket.setPerformancePreferences(0, 0, 1);
+			socket.setTrafficClass(IpTosThroughput);
+			socket.setSendBufferSize(TcpBufferSize);
+			socket.setSoTimeout(30000);
+			socket.setSoLinger(true, 30);
+			socket.setTcpNoDelay(false);
+			return socket;
+		}
+
+		private void closeSockets() {
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						Log.e(LOG_TAG, "socket close failed", e);
+					}
+				}
+			}
+			sockets = new Socket[0];
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (fan == null) {
+					// the walk overlaps connecting and the key exchange
+					scan = Manifest.scan(storage, files);
+				}
+				for (int attempt = 0; !cancelled; attempt++) {
+					try {
+						if (attempt > 0) {
+							Thread.sleep(RetryDelay);
+							Log.d(LOG_TAG, "resuming, attempt " + attempt);
+						}
+						transfer();
+					} catch (SocketTimeoutException e) {
+						Log.e(LOG_TAG, "socket timeout");
+					} catch (IOException e) {
+						Log.e(LOG_TAG, "connect failed", e);
+					} catch (InterruptedException e) {
+						Log.d(LOG_TAG, "Sender interrupted");
+					} finally {
+						closeSockets();
+						if (fan != null && !arrived) {
+							arrived = true;
+							fan.absent();
+						}
+					}
+					// a session that never got a key has nothing to resume
+					if (succeeded || fileEncryption == null || attempt >= MaxRetries) {
+						break;
+					}
+					Thread.interrupted(); // clear the abort of the broken attempt
+				}
+			} finally {
+				if (fan == null) {
+					if (scan != null) {
+						scan.cancel(true);
+					}
+					platform.finished(succeeded);
+				}
+			}
+		}
+
+		private void transfer() throws IOException, InterruptedException {
+			// With the key from the QR code the session key is ready before connecting
+			final FileEncryption published = fileEncryption == null && publishedKey != null
+					? new FileEncryption(getKeyExchange().generateSharedSecret(publishedKey)) : null;
+			final InetAddress address = InetAddress.getByName(host);
+			final Socket socket = newSocket();
+			sockets = new Socket[]{socket};
+			final long start = System.nanoTime();
+			socket.connect(new InetSocketAddress(address, port), ConnectTimeout);
+			// The kernel of the receiver answers the connect. Its first reply in the handshake
+			// would add the key generation, the ticket lookup or the calibration of the cipher
+			// suites to the round trip.
+			final long rtt = System.nanoTime() - start;
+
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+
+			Journal journal;
+			if (published != null) {
+				journal = sendFirstFlight(socket, out, in, published);
+				if (journal == null) {
+					closeSockets();
+					transfer();
+					return;
+				}
+			} else if (fileEncryption == null) {
+				// A ticket from an earlier session saves the key exchange
+				byte[] key = null;
+				final SessionTicket ticket = platform.takeTicket(host);
+				if (ticket != null) {
+					final byte[] senderRandom = SessionTicket.newRandom();
+					out.writeInt(HelloTicket);
+					out.write(ticket.id);
+					out.write(senderRandom);
+					out.flush();
+					final boolean accepted = in.readBoolean();
+					if (accepted) {
+						final byte[] receiverRandom = new byte[SessionTicket.RANDOM_LENGTH];
+						in.readFully(receiverRandom);
+						key = ticket.deriveKey(senderRandom, receiverRandom);
+						Log.d(LOG_TAG, "session resumed from a ticket");
+					} else {
+						Log.d(LOG_TAG, "ticket rejected");
+					}
+				}
+				if (key == null) {
+					// Send public key
+					byte[] publicKey = getKeyExchange().getPublicKey();
+					out.writeInt(publicKey.length);
+					out.write(publicKey);
+					out.flush();
+
+					// Receive peer's public key
+					int peerKeyLength = in.readInt();
+					if (peerKeyLength < 1 || peerKeyLength > KeyExchange.MAX_PUBLIC_KEY_LENGTH) {
+						throw new IOException("Invalid public key length " + peerKeyLength);
+					}
+					byte[] peerPublicKey = new byte[peerKeyLength];
+					in.readFully(peerPublicKey);
+
+					// Generate shared secret
+					key = getKeyExchange().generateSharedSecret(peerPublicKey);
+				}
+				fileEncryption = new FileEncryption(key);
+
+				// Offer the cipher suites for the data streams, the receiver picks one
+				final Map<CipherSuite, Long> rates = platform.getSuiteRates(integrityOnly);
+				final ByteArrayOutputStream offer = new ByteArrayOutputStream();
+				CipherSuite.writeRates(rates, new DataOutputStream(offer));
+				writeSealed(out, fileEncryption, offer.toByteArray());
+
+				sendManifest(out);
+				final byte[] choice = readSealed(in, fileEncryption);
+				if (choice.length != 1) {
+					throw new IOException("Invalid cipher suite choice");
+				}
+				final CipherSuite suite = CipherSuite.forId(choice[0]);
+				if (!rates.containsKey(suite)) {
+					throw new IOException("Receiver chose cipher suite " + suite + " that wasn't offered");
+				}
+				fileEncryption.setSuite(suite);
+				Log.d(LOG_TAG, "cipher suite " + suite);
+				platform.storeTicket(host, SessionTicket.read(
+						new DataInputStream(new ByteArrayInputStream(readSealed(in, fileEncryption))), fileEncryption));
+				journal = receiveAnswer(socket, in);
+			} else {
+				// Same key and files, the receiver tells what it has already
+				out.writeInt(HelloResume);
+				out.write(fileEncryption.newResumeToken());
+				out.flush();
+				journal = Journal.read(new DataInputStream(new ByteArrayInputStream(readSealed(in, fileEncryption))));
+			}
+
+			// Open the remaining stripes, they only prove that they know the session key
+			final int count = streams > 0 ? Math.min(streams, MaxStreams) : streamsForRtt(rtt);
+			Log.d(LOG_TAG, "rtt=" + rtt / 1000 + "us streams=" + count);
+			out.writeInt(count);
+			out.flush();
+			final Socket[] all = new Socket[count];
+			all[0] = socket;
+			sockets = all;
+			for (int i = 1; i < count; i++) {
+				all[i] = connect(address);
+				final DataOutputStream join = new DataOutputStream(all[i].getOutputStream());
+				join.writeInt(HelloJoin);
+				join.write(fileEncryption.newJoinToken());
+				join.flush();
+			}
+
+			if (fan != null && !arrived) {
+				arrived = true;
+				final FanOut.Branch branch = fan.await(this);
+				if (branch != null) {
+					streamBranch(all, branch);
+					return;
+				}
+			}
+			streamCopy(all, journal, rtt);
+		}
+
+		/**
+		 * Sends the key share, the cipher suite and the manifest at once, the manifest already
+		 * sealed with the key derived from the receiver's published key.
+		 *
+		 * @return what the receiver has of the files, or null if it didn't take the key
+		 */
+		@Nullable
+		private Journal sendFirstFlight(Socket socket, DataOutputStream out, DataInputStream in,
+				FileEncryption published) throws IOException {
+			publishedKey = null; // it serves one session only
+			final CipherSuite suite = CipherSuite.choose(platform.getSuiteRates(integrityOnly), publishedSuites);
+			if (suite == null) {
+				throw new IOException("No common cipher suite");
+			}
+			final byte[] publicKey = getKeyExchange().getPublicKey();
+			published.setSuite(suite);
+			fileEncryption = published;
+			Log.d(LOG_TAG, "cipher suite " + suite);
+			final byte[] ticket;
+			try {
+				out.writeInt(HelloPublished);
+				out.writeInt(publicKey.length);
+				out.write(publicKey);
+				writeSealed(out, published, new byte[]{(byte) suite.id});
+				sendManifest(out);
+				out.flush();
+				ticket = readSealed(in, fileEncryption);
+			} catch (IOException e) {
+				if (cancelled) {
+					throw e;
+				}
+				Log.w(LOG_TAG, "receiver didn't take the published key", e);
+				fileEncryption = null;
+				return null;
+			}
+			platform.storeTicket(host, SessionTicket.read(new DataInputStream(new ByteArrayInputStream(ticket)),
+					fileEncryption));
+			return receiveAnswer(socket, in);
+		}
+
+		/**
+		 * Tells what there is to send, the receiver answers with the files it needs.
+		 */
+		private void sendManifest(DataOutputStream out) throws IOException {
+			if (manifest == null) {
+				// every receiver of a fan-out answers its own copy, and deltas would differ
+				manifest = fan == null ? awaitManifest() : awaitManifest().copy();
+				manifest.setDelta(delta && fan == null);
+			}
+			final ByteArrayOutputStream message = new ByteArrayOutputStream();
+			manifest.write(new DataOutputStream(message));
+			writeSealed(out, fileEncryption, message.toByteArray());
+		}
+
+		private Manifest awaitManifest() throws IOException {
+			try {
+				return scan.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted while scanning");
+			} catch (ExecutionException e) {
+				throw new IOException("scan failed", e.getCause());
+			}
+		}
+
+		/**
+		 * Reads the files the receiver needs, and the journal of an earlier transfer of the same
+		 * files that broke off.
+		 */
+		private Journal receiveAnswer(Socket socket, DataInputStream in) throws IOException {
+			socket.setSoTimeout(ManifestTimeout);
+			final DataInputStream answer = new DataInputStream(new ByteArrayInputStream(readSealed(in, fileEncryption)));
+			manifest.readAnswer(answer);
+			final Journal journal = Journal.read(answer);
+			socket.setSoTimeout(30000);
+			return journal;
+		}
+
+		private void streamCopy(Socket[] sockets, Journal journal, long rtt) {
+			final Channel channel = new Channel(InitialChannelSize);
+			final ChannelSizer sizer = new ChannelSizer(channel, MinChannelMemory, channelMemory());
+			final Progress progress = new Progress();
+			progress.setTotal(manifest.remainingBytes(journal), manifest.remainingFiles(journal));
+			final ChunkSizer chunks = new ChunkSizer(manifest, MaxChunkSize);
+			final DirectoryReader reader = new DirectoryReader(storage, manifest, journal, channel, progress,
+					bufferPool, chunks.getChunkSize());
+			final AverageRateCounter rate = new AverageRateCounter(5);
+			if (compress) {
+				reader.setCompressor(new Compressor(bufferPool, rate));
+			}
+			sendBufferSize = TcpBufferSize; // what connect() set
+			reader.start();
+			Timer timer = new Timer();
+			try {
+				timer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						sizer.tick();
+						if (chunks.update(rate.total(), 1)) {
+							reader.setChunkSize(chunks.getChunkSize());
+						}
+						resizeSendBuffers(sockets, chunks.sendBufferSize(rtt, sockets.length));
+						platform.showProgress(progress.get(), channel.getUsed(), channel.getCapacity(),
+								sizer.getResizes(), rate);
+					}
+				}, 1000, 1000);
+				final boolean success = stripe(sockets, channel, bufferPool, rate, this::abort);
+				reader.join();
+				succeeded = success && reader.isSuccess();
+				Log.d(LOG_TAG, "Sender finished normally, " + bufferPool);
+			} catch (InterruptedException e) {
+				Log.d(LOG_TAG, "Sender interrupted");
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "Sender", e);
+			} finally {
+				timer.cancel();
+				reader.interrupt();
+			}
+		}
+
+		/**
+		 * Follows the bandwidth-delay product of the stripes, ignoring changes below a quarter.
+		 */
+		private void resizeSendBuffers(Socket[] sockets, int size) {
+			if (size == 0 || Math.abs(size - sendBufferSize) < sendBufferSize / 4) {
+				return;
+			}
+			Log.d(LOG_TAG, "send buffers " + sendBufferSize / 1024 + "K -> " + size / 1024 + "K");
+			sendBufferSize = size;
+			for (Socket socket : sockets) {
+				try {
+					socket.setSendBufferSize(size);
+				} catch (SocketException e) {
+					Log.w(LOG_TAG, "can't resize the send buffer", e);
+				}
+			}
+		}
+
+		/**
+		 * Sends this receiver's share of a fan-out, the files come from the {@link FanOut}.
+		 */
+		private void streamBranch(Socket[] sockets, FanOut.Branch branch) {
+			try {
+				succeeded = stripe(sockets, branch.channel, branch.getPool(), fan.rate, () -> {
+					abort();
+					branch.leave();
+				});
+				Log.d(LOG_TAG, "Sender fan-out to " + host + " finished, success=" + succeeded);
+			} catch (InterruptedException e) {
+				Log.d(LOG_TAG, "Sender interrupted");
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "Sender", e);
+			} finally {
+				if (!succeeded) {
+					// closed first, so that the views the branch gives back can't be sent any more
+					abort();
+					branch.leave();
+				}
+			}
+		}
+
+		/**
+		 * Seals and sends the frames of {@code channel} over {@code sockets} until it is closed.
+		 *
+		 * @param bufferPool where the frames go when they have been sent
+		 * @return whether all stripes finished
+		 */
+		private boolean stripe(Socket[] sockets, Channel channel, BufferPool bufferPool, RateCounter rate,
+				Runnable abort) throws IOException, InterruptedException {
+			final StripeWriter.Sequencer sequencer = new StripeWriter.Sequencer(channel);
+			final StripeWriter[] writers = new StripeWriter[sockets.length];
+			final ExecutorService workers = newCryptoWorkers();
+			final int depth = cryptoDepth(sockets.length);
+			try {
+				for (int i = 0; i < sockets.length; i++) {
+					final OutputStream out = sockets[i].getOutputStream();
+					writers[i] = new StripeWriter(sequencer, sockets[i].getChannel(), fileEncryption.startSealing(out),
+							workers, depth, bufferPool, recordPool, rate, abort);
+					writers[i].setName("StripeWriter-" + i);
+					writers[i].start();
+				}
+				boolean success = true;
+				for (StripeWriter writer : writers) {
+					writer.join();
+					success &= writer.isSuccess();
+				}
+				return success;
+			} finally {
+				for (StripeWriter writer : writers) {
+					if (writer != null) {
+						writer.interrupt();
+					}
+				}
+				workers.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Sends the same files to several receivers. Each one gets its own {@link TransferThread}
+	 * with its own key and stripes, but the files are read only once: when every receiver has
+	 * answered, a single {@link DirectoryReader} sends what any of them needs through a
+	 * {@link FanOut}. A receiver that breaks off or falls behind resumes on its own, like after
+	 * any other broken connection.
+	 */
+	private class FanOutThread extends Thread {
+		private final TransferThread[] peers;
+		private final List<TransferThread> ready = new ArrayList<>();
+		private final Map<TransferThread, FanOut.Branch> branches = new HashMap<>();
+		private final AverageRateCounter rate = new AverageRateCounter(5);
+		private int arrived = 0;
+		private boolean closed = false;
+		private FanOut fanOut;
+		private DirectoryReader reader;
+		private Timer timer;
+
+		FanOutThread(String[] hosts) {
+			peers = new TransferThread[hosts.length];
+			for (int i = 0; i < hosts.length; i++) {
+				peers[i] = new TransferThread(hosts[i], this);
+				peers[i].setName("TransferThread-" + hosts[i]);
+			}
+		}
+
+		@Override
+		public void interrupt() {
+			for (TransferThread peer : peers) {
+				peer.interrupt();
+			}
+			super.interrupt();
+		}
+
+		@Override
+		public void run() {
+			boolean success = false;
+			try {
+				scan = Manifest.scan(storage, files);
+				for (TransferThread peer : peers) {
+					peer.start();
+				}
+				success = true;
+				for (TransferThread peer : peers) {
+					peer.join();
+					success &= peer.succeeded;
+				}
+			} catch (InterruptedException e) {
+				success = false;
+				Log.d(LOG_TAG, "Sender interrupted");
+			} finally {
+				close();
+				scan.cancel(true);
+				platform.finished(success);
+			}
+		}
+
+		/**
+		 * Called by a receiver that has answered the manifest and connected its stripes. Waits
+		 * for the other receivers.
+		 *
+		 * @return the branch to send, or null if the fan-out is over
+		 */
+		synchronized FanOut.Branch await(TransferThread peer) throws InterruptedException {
+			if (fanOut != null || closed) {
+				return null;
+			}
+			ready.add(peer);
+			arrive();
+			while (fanOut == null && !closed) {
+				wait();
+			}
+			return branches.get(peer);
+		}
+
+		/**
+		 * Called by a receiver whose first attempt failed before it could join.
+		 */
+		synchronized void absent() {
+			if (fanOut == null && !closed) {
+				arrive();
+			}
+		}
+
+		private void arrive() {
+			if (++arrived < peers.length) {
+				return;
+			}
+			notifyAll();
+			if (ready.isEmpty()) {
+				closed = true;
+				return;
+			}
+			final List<Manifest> answered = new ArrayList<>();
+			for (TransferThread peer : ready) {
+				answered.add(peer.manifest);
+			}
+			final Manifest manifest = Manifest.union(answered);
+			final Channel channel = new Channel(InitialChannelSize);
+			final ChannelSizer sizer = new ChannelSizer(channel, MinChannelMemory, channelMemory());
+			final Progress progress = new Progress();
+			progress.setTotal(manifest.remainingBytes(null), manifest.remainingFiles(null));
+			final FanOut fanOut = new FanOut(channel, bufferPool);
+			for (TransferThread peer : ready) {
+				branches.put(peer, fanOut.addBranch(InitialChannelSize, peer::abort));
+			}
+			final ChunkSizer chunks = new ChunkSizer(manifest, MaxChunkSize);
+			reader = new DirectoryReader(storage, manifest, null, channel, progress, bufferPool,
+					chunks.getChunkSize()) {
+				@Override
+				public void run() {
+					super.run();
+					if (!isSuccess()) {
+						// the receivers get the rest on their own
+						fanOut.dropAll();
+					}
+				}
+			};
+			if (compress) {
+				reader.setCompressor(new Compressor(bufferPool, rate));
+			}
+			final int links = ready.size();
+			Log.d(LOG_TAG, "fan-out to " + ready.size() + " of " + peers.length + " receivers");
+			reader.start();
+			fanOut.start();
+			this.fanOut = fanOut;
+			timer = new Timer();
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					sizer.tick();
+					if (chunks.update(rate.total(), links)) {
+						reader.setChunkSize(chunks.getChunkSize());
+					}
+					platform.showProgress(progress.get(), channel.getUsed(), channel.getCapacity(), sizer.getResizes(),
+							rate);
+				}
+			}, 1000, 1000);
+		}
+
+		private synchronized void close() {
+			closed = true;
+			notifyAll();
+			if (timer != null) {
+				timer.cancel();
+			}
+			if (reader != null) {
+				reader.interrupt();
+			}
+			if (fanOut != null) {
+				fanOut.interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.lqzs.sorene.session;
+
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.lqzs.sorene.io.BufferPool;
+import org.lqzs.sorene.io.ChunkSizer;
+import org.lqzs.sorene.io.Log;
+import org.lqzs.sorene.security.FileEncryption;
+import org.lqzs.sorene.security.KeyExchange;
+import org.lqzs.sorene.security.RecordCipher;
+import org.lqzs.sorene.security.SessionTicket;
+
+import static org.lqzs.sorene.io.Log.LOG_TAG;
+
+/**
+ * What the {@link Sender} and the {@link Receiver} share: the handshake constants, the buffer
+ * pools and the key pair. A transfer runs on a thread of its own and tells its
+ * {@link Platform} how it goes.
+ */
+public abstract class Transfer {
+	public final static int DefaultPort = 14645;
+	final static int IpTosThroughput = 0x08;
+	/**
+	 * Socket buffer of the receiver and first send buffer of the sender, which then sizes it
+	 * with a {@link ChunkSizer}.
+	 */
+	final static int TcpBufferSize = 512 * 1024;
+	/**
+	 * Largest chunk of a frame, the sender picks smaller ones with a {@link ChunkSizer}.
+	 */
+	final static int MaxChunkSize = 2 * 1024 * 1024;
+	public final static int MaxStreams = 8;
+	final static int JoinTimeout = 10000;
+	final static long PoolLimit = 16 * 1024 * 1024;
+	final static long RecordPoolLimit = 8 * 1024 * 1024;
+	final static int MinChannelMemory = 8 * 1024 * 1024;
+	final static int MaxChannelMemory = 256 * 1024 * 1024;
+	final static int MaxRetries = 5;
+	final static int RetryDelay = 3000;
+	final static int ResumeTimeout = 60000;
+	/**
+	 * How long the sender waits for the receiver to compare the manifest with its tree, which
+	 * includes reading the old copies of files that are sent as deltas.
+	 */
+	final static int ManifestTimeout = 30 * 60 * 1000;
+	final static int MaxMessageLength = 64 * 1024 * 1024;
+	/**
+	 * First int on a connection that joins a session as an extra stripe, a new session starts
+	 * with the length of the sender's public key instead.
+	 */
+	final static int HelloJoin = 0;
+	/**
+	 * First int on a connection that resumes a broken session.
+	 */
+	final static int HelloResume = -1;
+	/**
+	 * First int on a connection that starts a new session with a {@link SessionTicket} instead
+	 * of a key exchange.
+	 */
+	final static int HelloTicket = -2;
+	/**
+	 * First int on a connection that starts a new session with the key that the receiver
+	 * published in its QR code.
+	 */
+	final static int HelloPublished = -3;
+	final Platform platform;
+	final BufferPool bufferPool = new BufferPool(MaxChunkSize, false, PoolLimit);
+	/**
+	 * Direct buffers for the sealed records that go through the socket channels.
+	 */
+	final BufferPool recordPool = new BufferPool(RecordCipher.MAX_SEALED_LENGTH, true, RecordPoolLimit);
+	private KeyExchange keyExchange = null;
+	@Nullable
+	private Thread thread = null;
+
+	Transfer(Platform platform) {
+		this.platform = platform;
+	}
+
+	/**
+	 * @return the thread that runs the transfer and calls {@link Platform#finished(boolean)}
+	 * at the end
+	 */
+	abstract Thread newThread();
+
+	public synchronized void start() {
+		if (thread == null) {
+			thread = newThread();
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the transfer for good, a cancelled session isn't resumed.
+	 */
+	public synchronized void cancel() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public void join() throws InterruptedException {
+		final Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+		}
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Gives back pooled buffers when the device runs low on memory.
+	 *
+	 * @param all whether to give back all of them or half
+	 */
+	public void trimMemory(boolean all) {
+		bufferPool.trim(all ? 0 : bufferPool.getPooledBytes() / 2);
+		recordPool.trim(all ? 0 : recordPool.getPooledBytes() / 2);
+		Log.d(LOG_TAG, "trimMemory(" + all + "): " + bufferPool + ", records " + recordPool);
+	}
+
+	/**
+	 * Number of parallel connections used when the sender didn't ask for a specific one. A single
+	 * stream fills a wire-like link, but the longer the round trip the more streams it takes to
+	 * keep a Wi-Fi link busy.
+	 */
+	static int streamsForRtt(long rttNanos) {
+		final long rttMillis = rttNanos / 1000000;
+		if (rttMillis < 1) {
+			return 1;
+		}
+		return (int) Math.min(MaxStreams, 2 + rttMillis / 2);
+	}
+
+	/**
+	 * Threads that seal or open the records of all stripes of a session.
+	 */
+	static ExecutorService newCryptoWorkers() {
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Frames each of {@code streams} stripes keeps in the crypto workers, enough for all of them
+	 * together to keep every core busy.
+	 */
+	static int cryptoDepth(int streams) {
+		return Math.max(2, (Runtime.getRuntime().availableProcessors() + streams - 1) / streams);
+	}
+
+	/**
+	 * Bytes that the channels of a transfer may hold: a quarter of the heap.
+	 */
+	int channelMemory() {
+		return (int) Math.max(MinChannelMemory, Math.min(MaxChannelMemory, platform.getHeapSize() / 4));
+	}
+
+	/**
+	 * The key pair is only generated once a session needs a full key exchange.
+	 */
+	synchronized KeyExchange getKeyExchange() throws IOException {
+		if (keyExchange == null) {
+			try {
+				keyExchange = new KeyExchange();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("Failed to initialize key exchange", e);
+			}
+		}
+		return keyExchange;
+	}
+
+	/**
+	 * Sends a control message encrypted with the session key.
+	 */
+	static void writeSealed(DataOutputStream out, FileEncryption encryption, byte[] message) throws IOException {
+		final byte[] sealed = encryption.seal(message);
+		out.writeInt(sealed.length);
+		out.write(sealed);
+		out.flush();
+	}
+
+	static byte[] readSealed(DataInputStream in, FileEncryption encryption) throws IOException {
+		final int length = in.readInt();
+		if (length < 1 || length > MaxMessageLength) {
+			throw new IOException("Invalid message length " + length);
+		}
+		final byte[] sealed = new byte[length];
+		in.readFully(sealed);
+		return encryption.open(sealed);
+	}
+}